@@ -0,0 +1,81 @@
+package link.xdavidwu.saf.thumbnails;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Throughput of thumbnail names with concurrent callers, thread count set by
+ * the jmh extension, against the shared, locked digest it replaced.
+ */
+public class XdgThumbnailNamesBenchmark {
+	private static final String[] NAMES = {
+		"IMG_20240101_120000.jpg",
+		"VID_20240101_120000.mp4",
+		"Screenshot from 2024-01-01 12-00-00.png",
+		"\u30b9\u30af\u30ea\u30fc\u30f3\u30b7\u30e7\u30c3\u30c8 2024-01-01.png",
+		"a rather long file name, as some cameras and exporters produce.jpeg",
+	};
+
+	@State(Scope.Benchmark)
+	public static class SharedDigest {
+		private final MessageDigest md5;
+
+		public SharedDigest() {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		synchronized String name(String filename) {
+			var digest = md5.digest(("./" + filename)
+				.getBytes(StandardCharsets.UTF_8));
+			var sb = new StringBuilder(36);
+			for (var b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.append(".png").toString();
+		}
+	}
+
+	// cycles names without per-invocation setup, which would dominate here
+	@State(Scope.Thread)
+	public static class Input {
+		private final String[] paths = new String[NAMES.length];
+		private int next = ThreadLocalRandom.current().nextInt(NAMES.length);
+
+		public Input() {
+			for (var i = 0; i < NAMES.length; i++) {
+				paths[i] = "/home/user/Pictures/" + NAMES[i];
+			}
+		}
+
+		int next() {
+			next = next + 1 == NAMES.length ? 0 : next + 1;
+			return next;
+		}
+	}
+
+	@Benchmark
+	public String sharedRepository(Input in) {
+		return XdgThumbnailNames.forSharedRepository(NAMES[in.next()]);
+	}
+
+	@Benchmark
+	public String personalRepository(Input in) {
+		return XdgThumbnailNames.forPersonalRepository(in.paths[in.next()]);
+	}
+
+	@Benchmark
+	public String sharedDigestBaseline(Input in, SharedDigest shared) {
+		return shared.name(NAMES[in.next()]);
+	}
+}
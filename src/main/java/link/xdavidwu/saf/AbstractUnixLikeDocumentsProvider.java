@@ -1,5 +1,6 @@
 package link.xdavidwu.saf;
 
+import android.net.Uri;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsProvider;
 import android.webkit.MimeTypeMap;
@@ -124,4 +125,26 @@ public abstract class AbstractUnixLikeDocumentsProvider
 			}
 		}
 	}
+
+	// e.g. from UriAsDocumentId
+	public abstract String pathFromDocumentId(String documentId);
+
+	// qualified with authority, and with the real path, in case root changes
+	public String qualifiedPathFromDocumentId(String documentId) {
+		return Uri.parse(documentId).buildUpon()
+			.path(pathFromDocumentId(documentId)).build().toString();
+	}
+
+	@Override
+	public FileVersion getFileVersion(String documentId)
+			throws FileNotFoundException {
+		try (var c = new UncheckedAutoCloseable<>(queryDocument(documentId,
+				new String[]{Document.COLUMN_SIZE, Document.COLUMN_LAST_MODIFIED}))) {
+			if (!c.c().moveToFirst()) {
+				return null;
+			}
+			return new FileVersion(qualifiedPathFromDocumentId(documentId),
+				c.c().getLong(0), c.c().getLong(1));
+		}
+	}
 }
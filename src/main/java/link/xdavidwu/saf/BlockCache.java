@@ -0,0 +1,56 @@
+package link.xdavidwu.saf;
+
+import android.util.LruCache;
+
+/*
+ * Fixed-size blocks of file content in memory, keyed by file version and
+ * block index, evicting least recently used ones beyond a byte budget shared
+ * by all users.
+ *
+ * The last block of a file may be shorter.
+ */
+public final class BlockCache {
+	public static final int BLOCK_SIZE = 64 * 1024;
+
+	private record Key(FileVersion version, long index) {}
+
+	private volatile LruCache<Key, byte[]> blocks;
+
+	public BlockCache(long maxBytes) {
+		setMaxBytes(maxBytes);
+	}
+
+	// LruCache counts in int, larger budgets are clamped
+	public synchronized void setMaxBytes(long maxBytes) {
+		var max = (int) Math.min(maxBytes, Integer.MAX_VALUE);
+		if (max < BLOCK_SIZE) {
+			blocks = null;
+		} else if (blocks == null) {
+			blocks = new LruCache<>(max) {
+				@Override
+				protected int sizeOf(Key key, byte[] value) {
+					return value.length;
+				}
+			};
+		} else {
+			blocks.resize(max);
+		}
+	}
+
+	public boolean isEnabled() {
+		return blocks != null;
+	}
+
+	public byte[] get(FileVersion version, long index) {
+		var b = blocks;
+		return b != null ? b.get(new Key(version, index)) : null;
+	}
+
+	// block must not be modified afterwards
+	public void put(FileVersion version, long index, byte[] block) {
+		var b = blocks;
+		if (b != null) {
+			b.put(new Key(version, index), block);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package link.xdavidwu.saf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Digests in lowercase hex, e.g. for names of files cached on device.
+ */
+public final class Digests {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private Digests() {}
+
+	public static char hexDigit(int nibble) {
+		return HEX_DIGITS[nibble & 0xf];
+	}
+
+	// writes bytes.length * 2 chars from offset
+	public static void toHex(byte[] bytes, char[] out, int offset) {
+		for (var i = 0; i < bytes.length; i++) {
+			out[offset + i * 2] = HEX_DIGITS[(bytes[i] & 0xf0) >>> 4];
+			out[offset + i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+	}
+
+	// of UTF-8 of s
+	public static String sha1Hex(String s) {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		var digest = sha1.digest(s.getBytes(StandardCharsets.UTF_8));
+		var hex = new char[digest.length * 2];
+		toHex(digest, hex, 0);
+		return String.valueOf(hex);
+	}
+}
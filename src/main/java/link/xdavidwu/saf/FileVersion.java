@@ -0,0 +1,10 @@
+package link.xdavidwu.saf;
+
+/*
+ * Identifies content of a file for caching derived data, assuming that
+ * content does not change without changing size or mtime.
+ *
+ * path should be qualified enough to be unique across roots, e.g. a URI with
+ * authority.
+ */
+public record FileVersion(String path, long size, long mtime) {}
@@ -0,0 +1,65 @@
+package link.xdavidwu.saf;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/*
+ * Fixed set of looper threads for callbacks that are bound to a single
+ * Handler each, e.g. ProxyFileDescriptorCallback. A caller is handed the
+ * looper with the least users, so that blocking in one, e.g. on network,
+ * holds up as few others as possible.
+ *
+ * On close, loopers still in use are left running until released, so that
+ * pending callbacks, e.g. onRelease, are still delivered.
+ */
+public class LooperPool implements AutoCloseable {
+	private final HandlerThread[] threads;
+	private final Handler[] handlers;
+	private final int[] users;
+	private boolean closed;
+
+	public LooperPool(String name, int size) {
+		threads = new HandlerThread[size];
+		handlers = new Handler[size];
+		users = new int[size];
+		for (var i = 0; i < size; i++) {
+			threads[i] = new HandlerThread(name + " " + i);
+			threads[i].start();
+			handlers[i] = new Handler(threads[i].getLooper());
+		}
+	}
+
+	// to be paired with release()
+	public synchronized Handler acquire() {
+		var least = 0;
+		for (var i = 1; i < users.length; i++) {
+			if (users[i] < users[least]) {
+				least = i;
+			}
+		}
+		users[least]++;
+		return handlers[least];
+	}
+
+	public synchronized void release(Handler handler) {
+		for (var i = 0; i < handlers.length; i++) {
+			if (handlers[i] == handler) {
+				users[i]--;
+				if (closed && users[i] == 0) {
+					threads[i].quitSafely();
+				}
+				return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (var i = 0; i < threads.length; i++) {
+			if (users[i] == 0) {
+				threads[i].quitSafely();
+			}
+		}
+	}
+}
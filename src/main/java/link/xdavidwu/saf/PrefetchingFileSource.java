@@ -0,0 +1,155 @@
+package link.xdavidwu.saf;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Positioned reads over a file descriptor, kept in memory and extended in
+ * large steps, so that parsers seeking around the head of a file cost a round
+ * trip or two on remote-backed file descriptors instead of one per read.
+ * Reads beyond the next step are passed through, not buffered.
+ *
+ * The file descriptor is not owned, and must stay open while in use.
+ */
+public class PrefetchingFileSource {
+	public static final int DEFAULT_PREFETCH_BYTES = 64 * 1024;
+	// reads past this go straight to the file descriptor
+	private static final int MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+	private final FileDescriptor fd;
+	private final int prefetchBytes;
+	private byte[] buf = new byte[0];
+	private int buffered;
+	private boolean eof;
+	private long size = -1;
+
+	public PrefetchingFileSource(FileDescriptor fd, int prefetchBytes) {
+		this.fd = fd;
+		this.prefetchBytes = Math.max(prefetchBytes, 4096);
+	}
+
+	public synchronized long getSize() throws IOException {
+		if (size < 0) {
+			try {
+				size = Os.fstat(fd).st_size;
+			} catch (ErrnoException e) {
+				throw e.rethrowAsIOException();
+			}
+		}
+		return size;
+	}
+
+	// extends in steps of prefetchBytes, to cover at least end if possible
+	private void fill(long end) throws IOException {
+		var steps = (end - buffered + prefetchBytes - 1) / prefetchBytes;
+		var target = (int) Math.min(MAX_BUFFERED_BYTES,
+			buffered + Math.max(1, steps) * prefetchBytes);
+		if (target <= buffered) {
+			return;
+		}
+		if (target > buf.length) {
+			var grown = new byte[target];
+			System.arraycopy(buf, 0, grown, 0, buffered);
+			buf = grown;
+		}
+		try {
+			while (buffered < target) {
+				var n = Os.pread(fd, buf, buffered, target - buffered, buffered);
+				if (n == 0) {
+					eof = true;
+					break;
+				}
+				buffered += n;
+			}
+		} catch (ErrnoException e) {
+			throw e.rethrowAsIOException();
+		}
+	}
+
+	// like pread(2), but returns -1 on EOF
+	public int readAt(long position, byte[] b, int off, int len)
+			throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		synchronized (this) {
+			// reads far ahead, e.g. to a trailer, are not worth the gap in
+			// between
+			if (position + len > buffered && !eof &&
+					position <= (long) buffered + prefetchBytes) {
+				fill(position + len);
+			}
+			if (position < buffered) {
+				var n = (int) Math.min(len, buffered - position);
+				System.arraycopy(buf, (int) position, b, off, n);
+				return n;
+			}
+			if (eof) {
+				return -1;
+			}
+		}
+		// positioned, so without the lock, not to hold up other readers
+		try {
+			var n = Os.pread(fd, b, off, len, position);
+			return n == 0 ? -1 : n;
+		} catch (ErrnoException e) {
+			throw e.rethrowAsIOException();
+		}
+	}
+
+	// a new stream from the start of file, not to be shared among threads
+	public InputStream newInputStream() {
+		return new InputStream() {
+			private long position;
+			private long mark;
+
+			@Override
+			public int read() throws IOException {
+				var b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				var n = readAt(position, b, off, len);
+				if (n > 0) {
+					position += n;
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				var skipped = Math.max(0, Math.min(n, getSize() - position));
+				position += skipped;
+				return skipped;
+			}
+
+			// parsers may take this as length, e.g. ExifInterface
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(Integer.MAX_VALUE,
+					Math.max(0, getSize() - position));
+			}
+
+			@Override
+			public boolean markSupported() {
+				return true;
+			}
+
+			@Override
+			public void mark(int readlimit) {
+				mark = position;
+			}
+
+			@Override
+			public void reset() {
+				position = mark;
+			}
+		};
+	}
+}
@@ -1,15 +1,15 @@
 package link.xdavidwu.saf.metadata;
 
+import android.media.MediaDataSource;
 import android.media.MediaMetadataRetriever;
-import android.os.Build;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 
 import java.io.IOException;
 import java.util.Map;
 
 import link.xdavidwu.saf.AutoCloseableMediaMetadataRetriever;
+import link.xdavidwu.saf.PrefetchingFileSource;
 
 public abstract class AbstractMediaMetadataProvider implements MetadataProvider {
 
@@ -24,6 +24,25 @@ public abstract class AbstractMediaMetadataProvider implements MetadataProvider
 		}
 	}
 
+	// source is not owned
+	static MediaDataSource toMediaDataSource(PrefetchingFileSource source) {
+		return new MediaDataSource() {
+			@Override
+			public int readAt(long position, byte[] buffer, int offset,
+					int size) throws IOException {
+				return source.readAt(position, buffer, offset, size);
+			}
+
+			@Override
+			public long getSize() throws IOException {
+				return source.getSize();
+			}
+
+			@Override
+			public void close() {}
+		};
+	}
+
 	protected abstract String getMetadataType();
 
 	protected abstract Map<Integer, KeyInfo> getMetadataKeyMap();
@@ -33,7 +52,7 @@ public abstract class AbstractMediaMetadataProvider implements MetadataProvider
 	}
 
 	@Override
-	public void getMetadata(Bundle metadata, ParcelFileDescriptor fd,
+	public void getMetadata(Bundle metadata, PrefetchingFileSource source,
 			String mimeType) throws IOException {
 		if (!isSupportedMimeType(mimeType)) {
 			return;
@@ -41,8 +60,7 @@ public abstract class AbstractMediaMetadataProvider implements MetadataProvider
 		Bundle typeSpecificMetadata = new Bundle();
 
 		try (var mmr = new AutoCloseableMediaMetadataRetriever()) {
-			mmr.setDataSource(fd.getFileDescriptor());
-			fd.close();
+			mmr.setDataSource(toMediaDataSource(source));
 
 			getMetadataKeyMap().forEach((mmrKey, info) -> {
 				var raw = mmr.extractMetadata(mmrKey);
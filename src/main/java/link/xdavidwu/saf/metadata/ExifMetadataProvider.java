@@ -1,10 +1,11 @@
 package link.xdavidwu.saf.metadata;
 
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
 
 import java.io.IOException;
 
+import link.xdavidwu.saf.PrefetchingFileSource;
+
 public class ExifMetadataProvider implements MetadataProvider {
 
 	@Override
@@ -13,11 +14,9 @@ public class ExifMetadataProvider implements MetadataProvider {
 	}
 
 	@Override
-	public void getMetadata(Bundle metadata, ParcelFileDescriptor fd,
+	public void getMetadata(Bundle metadata, PrefetchingFileSource source,
 			String mimeType) throws IOException {
-		try (fd) {
-			MetadataReader.getMetadata(metadata, fd.getFileDescriptor(),
-				mimeType, null);
-		}
+		MetadataReader.getMetadata(metadata, source.newInputStream(),
+			mimeType, null);
 	}
 }
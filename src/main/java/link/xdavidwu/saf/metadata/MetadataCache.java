@@ -0,0 +1,250 @@
+package link.xdavidwu.saf.metadata;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+
+import link.xdavidwu.saf.FileVersion;
+
+/*
+ * Extracted metadata persisted in SQLite, one row per path that is only
+ * served for the same size and mtime, evicting least recently used rows
+ * beyond maxEntries.
+ *
+ * The database is opened and trimmed on first use, by callers of get() and
+ * put(), which are not expected to be on the main thread. Recency is only
+ * recorded once per ACCESS_GRANULARITY, so that hits are mostly reads.
+ *
+ * Bundles are stored in a format of our own, as described in encode(), as
+ * Parcel is not meant to be persisted.
+ */
+public class MetadataCache extends SQLiteOpenHelper {
+	private static final String TAG = "MetadataCache";
+	private static final String TABLE = "metadata";
+	// 1: parceled bundles, versioned by SDK_INT, thus always below this
+	private static final int VERSION = 2;
+	private static final Duration ACCESS_GRANULARITY = Duration.ofHours(1);
+
+	private static final byte TYPE_STRING = 's';
+	private static final byte TYPE_INT = 'i';
+	private static final byte TYPE_LONG = 'l';
+	private static final byte TYPE_FLOAT = 'f';
+	private static final byte TYPE_DOUBLE = 'd';
+
+	private volatile int maxEntries;
+	// counts replaced rows as well until recounted, -1 if not counted yet
+	private long rows = -1;
+
+	public MetadataCache(Context context, String name, int maxEntries) {
+		super(context, name, null, VERSION);
+		this.maxEntries = maxEntries;
+	}
+
+	// applied on next put(), not to touch the database here
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " (path TEXT PRIMARY KEY, " +
+			"size INTEGER, mtime INTEGER, metadata BLOB, accessed INTEGER)");
+		db.execSQL("CREATE INDEX " + TABLE + "_accessed ON " + TABLE +
+			" (accessed)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+		onCreate(db);
+	}
+
+	@Override
+	public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		onUpgrade(db, oldVersion, newVersion);
+	}
+
+	public Bundle get(FileVersion version) {
+		try {
+			var db = getWritableDatabase();
+			byte[] blob;
+			long accessed;
+			try (var c = db.query(TABLE, new String[]{"metadata", "accessed"},
+					"path = ? AND size = ? AND mtime = ?", new String[]{
+						version.path(), String.valueOf(version.size()),
+						String.valueOf(version.mtime())},
+					null, null, null)) {
+				if (!c.moveToFirst()) {
+					return null;
+				}
+				blob = c.getBlob(0);
+				accessed = c.getLong(1);
+			}
+
+			var now = System.currentTimeMillis();
+			if (now - accessed >= ACCESS_GRANULARITY.toMillis()) {
+				var values = new ContentValues();
+				values.put("accessed", now);
+				db.update(TABLE, values, "path = ?",
+					new String[]{version.path()});
+			}
+			return decode(blob);
+		} catch (SQLiteException|IOException e) {
+			Log.w(TAG, "cannot read metadata cache", e);
+			return null;
+		}
+	}
+
+	public void put(FileVersion version, Bundle metadata) {
+		byte[] blob;
+		try {
+			blob = encode(metadata);
+		} catch (IOException e) {
+			// e.g. strings too long for writeUTF
+			Log.w(TAG, "cannot encode metadata", e);
+			return;
+		}
+
+		var values = new ContentValues();
+		values.put("path", version.path());
+		values.put("size", version.size());
+		values.put("mtime", version.mtime());
+		values.put("metadata", blob);
+		values.put("accessed", System.currentTimeMillis());
+		try {
+			var db = getWritableDatabase();
+			db.insertWithOnConflict(TABLE, null, values,
+				SQLiteDatabase.CONFLICT_REPLACE);
+			onInserted(db);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot write metadata cache", e);
+		}
+	}
+
+	private synchronized void onInserted(SQLiteDatabase db) {
+		rows = rows < 0 ? DatabaseUtils.queryNumEntries(db, TABLE) : rows + 1;
+		var max = maxEntries;
+		if (rows <= max) {
+			return;
+		}
+		// with some room, not to trim again on the next insert
+		var keep = Math.max(1, max - max / 10);
+		// ties at the boundary are kept
+		db.execSQL("DELETE FROM " + TABLE + " WHERE accessed < (SELECT " +
+			"accessed FROM " + TABLE + " ORDER BY accessed DESC LIMIT 1 " +
+			"OFFSET ?)", new Object[]{keep - 1});
+		rows = DatabaseUtils.queryNumEntries(db, TABLE);
+	}
+
+	/*
+	 * Bundles of METADATA_TYPES, each as count of entries followed by entries
+	 * of key, type and value, in DataOutput encoding. Values of other types
+	 * are left out, as are other keys at the top level.
+	 */
+	private static byte[] encode(Bundle metadata) throws IOException {
+		var types = metadata.getStringArray(DocumentsContract.METADATA_TYPES);
+		var bytes = new ByteArrayOutputStream();
+		try (var out = new DataOutputStream(bytes)) {
+			var bundles = new ArrayList<Bundle>();
+			var names = new ArrayList<String>();
+			for (var type : types != null ? types : new String[0]) {
+				var bundle = metadata.getBundle(type);
+				if (bundle != null) {
+					names.add(type);
+					bundles.add(bundle);
+				}
+			}
+			out.writeInt(bundles.size());
+			for (var i = 0; i < bundles.size(); i++) {
+				out.writeUTF(names.get(i));
+				encode(out, bundles.get(i));
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void encode(DataOutputStream out, Bundle bundle)
+			throws IOException {
+		var entries = new ByteArrayOutputStream();
+		var count = 0;
+		try (var e = new DataOutputStream(entries)) {
+			for (var key : bundle.keySet()) {
+				var value = bundle.get(key);
+				if (value instanceof String s) {
+					e.writeUTF(key);
+					e.writeByte(TYPE_STRING);
+					e.writeUTF(s);
+				} else if (value instanceof Integer n) {
+					e.writeUTF(key);
+					e.writeByte(TYPE_INT);
+					e.writeInt(n);
+				} else if (value instanceof Long n) {
+					e.writeUTF(key);
+					e.writeByte(TYPE_LONG);
+					e.writeLong(n);
+				} else if (value instanceof Float n) {
+					e.writeUTF(key);
+					e.writeByte(TYPE_FLOAT);
+					e.writeFloat(n);
+				} else if (value instanceof Double n) {
+					e.writeUTF(key);
+					e.writeByte(TYPE_DOUBLE);
+					e.writeDouble(n);
+				} else {
+					continue;
+				}
+				count++;
+			}
+		}
+		out.writeInt(count);
+		entries.writeTo(out);
+	}
+
+	private static Bundle decode(byte[] blob) throws IOException {
+		var metadata = new Bundle();
+		try (var in = new DataInputStream(new ByteArrayInputStream(blob))) {
+			var n = in.readInt();
+			// corrupted, not to allocate arbitrarily
+			if (n < 0 || n > blob.length) {
+				throw new IOException("malformed metadata");
+			}
+			var types = new String[n];
+			for (var i = 0; i < types.length; i++) {
+				types[i] = in.readUTF();
+				var bundle = new Bundle();
+				for (var count = in.readInt(); count > 0; count--) {
+					var key = in.readUTF();
+					switch (in.readByte()) {
+					case TYPE_STRING -> bundle.putString(key, in.readUTF());
+					case TYPE_INT -> bundle.putInt(key, in.readInt());
+					case TYPE_LONG -> bundle.putLong(key, in.readLong());
+					case TYPE_FLOAT -> bundle.putFloat(key, in.readFloat());
+					case TYPE_DOUBLE -> bundle.putDouble(key, in.readDouble());
+					default -> throw new IOException("unknown value type");
+					}
+				}
+				metadata.putBundle(types[i], bundle);
+			}
+			metadata.putStringArray(DocumentsContract.METADATA_TYPES, types);
+		}
+		return metadata;
+	}
+}
@@ -1,15 +1,16 @@
 package link.xdavidwu.saf.metadata;
 
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
 
 import java.io.IOException;
 
+import link.xdavidwu.saf.PrefetchingFileSource;
+
 public interface MetadataProvider {
 
 	boolean isSupportedMimeType(String mimeType);
 
-	// fd should be closed by implementation
-	void getMetadata(Bundle metadata, ParcelFileDescriptor fd, String mimeType)
-		throws IOException;
+	// source is shared with other providers, possibly concurrently
+	void getMetadata(Bundle metadata, PrefetchingFileSource source,
+		String mimeType) throws IOException;
 }
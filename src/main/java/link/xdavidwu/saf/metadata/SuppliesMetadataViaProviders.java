@@ -4,16 +4,32 @@ import android.app.AuthenticationRequiredException;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
 import android.util.Log;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import link.xdavidwu.saf.FileVersion;
+import link.xdavidwu.saf.PrefetchingFileSource;
 
 public interface SuppliesMetadataViaProviders {
 	static final String TAG = "SuppliesMetadataViaProviders";
 	static final List<MetadataProvider> DEFAULT_PROVIDERS = List.of(
-		new ExifMetadataProvider(), new AudioMetadataProvider(), new VideoMetadataProvider());
+		new ExifMetadataProvider(), new AudioMetadataProvider(),
+		new VideoMetadataProvider(), new VideoXmpMetadataProvider());
+	static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(10);
 
 	// forwarded from DocumentsProvider
 	ParcelFileDescriptor openDocument(String documentId, String mode,
@@ -24,37 +40,128 @@ public interface SuppliesMetadataViaProviders {
 	String getDocumentType(String documentId)
 		throws AuthenticationRequiredException, FileNotFoundException;
 
+	// caching is enabled if both of these are non-null
+	default MetadataCache getMetadataCache() {
+		return null;
+	}
+
+	default FileVersion getFileVersion(String documentId)
+			throws AuthenticationRequiredException, FileNotFoundException {
+		return null;
+	}
+
 	default List<MetadataProvider> getMetadataProviders() {
 		return DEFAULT_PROVIDERS;
 	}
 
+	default int getMetadataPrefetchBytes() {
+		return PrefetchingFileSource.DEFAULT_PREFETCH_BYTES;
+	}
+
+	// providers block on I/O, better not on the common pool
+	default Executor getMetadataExecutor() {
+		return ForkJoinPool.commonPool();
+	}
+
+	// results of providers not done by then are left out
+	default Duration getMetadataDeadline() {
+		return DEFAULT_DEADLINE;
+	}
+
 	default boolean typeSupportsMetadata(String mimeType) {
 		return getMetadataProviders().stream()
 			.anyMatch(p -> p.isSupportedMimeType(mimeType));
 	}
 
+	// e.g. videos get both video and EXIF bundles
+	private static void merge(Bundle metadata, Bundle from) {
+		var types = new LinkedHashSet<String>();
+		for (var b : new Bundle[]{metadata, from}) {
+			var t = b.getStringArray(DocumentsContract.METADATA_TYPES);
+			if (t != null) {
+				types.addAll(Arrays.asList(t));
+			}
+		}
+		metadata.putAll(from);
+		metadata.putStringArray(DocumentsContract.METADATA_TYPES,
+			types.toArray(new String[0]));
+	}
+
 	// NOTES: DocumentsProvider provides a concrete getDocumentMetadata()
 	// (that just throws), so manual wiring is required
 	default Bundle getDocumentMetadataViaProviders(String documentId)
 			throws AuthenticationRequiredException, FileNotFoundException {
+		var cache = getMetadataCache();
+		var version = cache != null ? getFileVersion(documentId) : null;
+		if (version != null) {
+			var cached = cache.get(version);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
 		var mimeType = getDocumentType(documentId);
 		if (mimeType == null) {
 			Log.e(TAG, "getDocumentType returns null");
 			return null;
 		}
 
-		var provider = getMetadataProviders().stream()
-			.filter(p -> p.isSupportedMimeType(mimeType)).findFirst();
-		if (provider.isEmpty()) {
+		var providers = getMetadataProviders().stream()
+			.filter(p -> p.isSupportedMimeType(mimeType))
+			.collect(Collectors.toList());
+		if (providers.isEmpty()) {
 			return null;
 		}
 
+		// one open, and the head read once, for all of providers
 		var fd = openDocument(documentId, "r", null);
-		var metadata = new Bundle();
+		var source = new PrefetchingFileSource(fd.getFileDescriptor(),
+			getMetadataPrefetchBytes());
+		var futures = providers.stream().map(p ->
+			CompletableFuture.supplyAsync(() -> {
+				var b = new Bundle();
+				try {
+					p.getMetadata(b, source, mimeType);
+				} catch (IOException|RuntimeException e) {
+					// e.g. unparsable numbers, not to take down others
+					Log.e(TAG, "cannot extract metadata", e);
+					return null;
+				}
+				return b;
+			}, getMetadataExecutor())).collect(Collectors.toList());
+		var all = CompletableFuture.allOf(
+			futures.toArray(new CompletableFuture<?>[0]));
+		// stragglers may still be reading past deadline
+		all.whenComplete((v, e) -> {
+			try {
+				fd.close();
+			} catch (IOException e2) {
+				Log.w(TAG, "failed to close fd", e2);
+			}
+		});
+
+		var complete = true;
 		try {
-			provider.get().getMetadata(metadata, fd, mimeType);
-		} catch (IOException e) {
+			all.get(getMetadataDeadline().toMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			Log.w(TAG, "metadata extraction timed out, returning partial");
+			complete = false;
+		} catch (ExecutionException|InterruptedException e) {
 			Log.e(TAG, "cannot extract metadata", e);
+			complete = false;
+		}
+
+		var metadata = new Bundle();
+		for (var future : futures) {
+			var b = future.getNow(null);
+			if (b == null) {
+				complete = false;
+				continue;
+			}
+			merge(metadata, b);
+		}
+		if (complete && version != null) {
+			cache.put(version, metadata);
 		}
 		return metadata;
 	}
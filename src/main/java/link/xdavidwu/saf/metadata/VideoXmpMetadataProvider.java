@@ -0,0 +1,142 @@
+package link.xdavidwu.saf.metadata;
+
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.util.Xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import link.xdavidwu.saf.AutoCloseableMediaMetadataRetriever;
+import link.xdavidwu.saf.PrefetchingFileSource;
+
+/*
+ * EXIF-like data of videos from their XMP packets, e.g. camera make and model,
+ * shown by DocumentsUI alongside what VideoMetadataProvider finds.
+ *
+ * MediaMetadataRetriever locates XMP only since S.
+ */
+public class VideoXmpMetadataProvider implements MetadataProvider {
+	private static final int MAX_XMP_BYTES = 1024 * 1024;
+	private static final String NS_TIFF = "http://ns.adobe.com/tiff/1.0/";
+	private static final String NS_EXIF = "http://ns.adobe.com/exif/1.0/";
+	private static final String NS_XMP = "http://ns.adobe.com/xap/1.0/";
+
+	private record Property(String namespace, String name) {}
+
+	// first ones found win
+	private static final Map<Property, String> TAG_MAPPING = Map.of(
+		new Property(NS_TIFF, "Make"), ExifInterface.TAG_MAKE,
+		new Property(NS_TIFF, "Model"), ExifInterface.TAG_MODEL,
+		new Property(NS_EXIF, "DateTimeOriginal"),
+			ExifInterface.TAG_DATETIME_ORIGINAL,
+		new Property(NS_XMP, "CreateDate"), ExifInterface.TAG_DATETIME_ORIGINAL,
+		new Property(NS_XMP, "CreatorTool"), ExifInterface.TAG_SOFTWARE);
+
+	private static final Pattern XMP_DATE = Pattern.compile(
+		"^(\\d{4})-(\\d\\d)-(\\d\\d)T(\\d\\d:\\d\\d:\\d\\d)");
+
+	@Override
+	public boolean isSupportedMimeType(String mimeType) {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.S &&
+			mimeType.startsWith("video/");
+	}
+
+	@Override
+	public void getMetadata(Bundle metadata, PrefetchingFileSource source,
+			String mimeType) throws IOException {
+		if (!isSupportedMimeType(mimeType)) {
+			return;
+		}
+		long offset, length;
+		try (var mmr = new AutoCloseableMediaMetadataRetriever()) {
+			mmr.setDataSource(
+				AbstractMediaMetadataProvider.toMediaDataSource(source));
+			var rawOffset = mmr.extractMetadata(
+				MediaMetadataRetriever.METADATA_KEY_XMP_OFFSET);
+			var rawLength = mmr.extractMetadata(
+				MediaMetadataRetriever.METADATA_KEY_XMP_LENGTH);
+			if (rawOffset == null || rawLength == null) {
+				return;
+			}
+			offset = Long.parseLong(rawOffset);
+			length = Long.parseLong(rawLength);
+		}
+		if (length <= 0 || length > MAX_XMP_BYTES) {
+			return;
+		}
+
+		var xmp = new byte[(int) length];
+		for (var read = 0; read < xmp.length;) {
+			var n = source.readAt(offset + read, xmp, read, xmp.length - read);
+			if (n == -1) {
+				throw new IOException("XMP packet past end of file");
+			}
+			read += n;
+		}
+
+		var exif = new Bundle();
+		try {
+			parse(xmp, exif);
+		} catch (XmlPullParserException e) {
+			throw new IOException("malformed XMP packet", e);
+		}
+		if (exif.isEmpty()) {
+			return;
+		}
+		metadata.putBundle(DocumentsContract.METADATA_EXIF, exif);
+		metadata.putStringArray(DocumentsContract.METADATA_TYPES,
+			new String[]{DocumentsContract.METADATA_EXIF});
+	}
+
+	// properties may be attributes of rdf:Description, or elements in it
+	private static void parse(byte[] xmp, Bundle exif)
+			throws IOException, XmlPullParserException {
+		var parser = Xml.newPullParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new ByteArrayInputStream(xmp), null);
+		for (var event = parser.getEventType();
+				event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+			if (event != XmlPullParser.START_TAG) {
+				continue;
+			}
+			for (var i = 0; i < parser.getAttributeCount(); i++) {
+				put(exif, new Property(parser.getAttributeNamespace(i),
+					parser.getAttributeName(i)), parser.getAttributeValue(i));
+			}
+			var property = new Property(parser.getNamespace(), parser.getName());
+			if (TAG_MAPPING.containsKey(property) &&
+					parser.next() == XmlPullParser.TEXT) {
+				put(exif, property, parser.getText());
+			}
+		}
+	}
+
+	private static void put(Bundle exif, Property property, String value) {
+		var tag = TAG_MAPPING.get(property);
+		if (tag == null || exif.containsKey(tag) || value == null) {
+			return;
+		}
+		value = value.strip();
+		if (ExifInterface.TAG_DATETIME_ORIGINAL.equals(tag)) {
+			// as EXIF, local time
+			var m = XMP_DATE.matcher(value);
+			if (!m.find()) {
+				return;
+			}
+			value = m.group(1) + ":" + m.group(2) + ":" + m.group(3) + " " +
+				m.group(4);
+		}
+		if (!value.isEmpty()) {
+			exif.putString(tag, value);
+		}
+	}
+}
@@ -6,7 +6,10 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.PreferenceDataStore;
 import android.preference.PreferenceFragment;
 import android.util.Log;
 
@@ -25,6 +28,26 @@ public class SettingsFragment extends PreferenceFragment
 		EMPTY_SUMMARY_MAPPING.put("mountpoint", R.string.remote_path_summary);
 	}
 
+	// edits of per-profile keys go to a named profile
+	private record ProfileDataStore(SharedPreferences sp)
+			implements PreferenceDataStore {
+		@Override
+		public void putString(String key, String value) {
+			sp.edit().putString(key, value).apply();
+		}
+
+		@Override
+		public String getString(String key, String defValue) {
+			return sp.getString(key, defValue);
+		}
+	}
+
+	private String editing = SftpProfiles.DEFAULT;
+
+	private SharedPreferences getEditingPreferences() {
+		return SftpProfiles.of(getActivity(), editing);
+	}
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -33,8 +56,7 @@ public class SettingsFragment extends PreferenceFragment
 		Preference testConnection = findPreference("test_connection");
 		var activity = getActivity();
 		testConnection.setOnPreferenceClickListener((p) -> {
-			SharedPreferences settings = SettingsFragment.this.
-				getPreferenceScreen().getSharedPreferences();
+			var settings = getEditingPreferences();
 			ProgressDialog pd = ProgressDialog.show(activity,
 				"Connection test", "Connecting.");
 			CompletableFuture.supplyAsync(() -> {
@@ -61,32 +83,73 @@ public class SettingsFragment extends PreferenceFragment
 		});
 		var launch = findPreference("launch");
 		launch.setOnPreferenceClickListener(p -> {
-			var settings = SettingsFragment.this.
-				getPreferenceScreen().getSharedPreferences();
+			var settings = getEditingPreferences();
 			var params = SftpConnectionParameters.fromSharedPreferences(settings);
 			var intent = new Intent(Intent.ACTION_VIEW, params.getRootContentUri());
 			startActivity(intent);
 			return true;
 		});
 
+		var profile = (ListPreference) findPreference("editing_profile");
+		profile.setOnPreferenceChangeListener((p, value) -> {
+			edit((String) value);
+			return true;
+		});
+
 		SharedPreferences settings = getPreferenceScreen().getSharedPreferences();
 		settings.registerOnSharedPreferenceChangeListener(this);
-		EMPTY_SUMMARY_MAPPING.forEach((key, resId) -> {
-			var val = settings.getString(key, "");
-			if (!"".equals(val)) {
-				findPreference(key).setSummary(val);
+		updateProfiles();
+		EMPTY_SUMMARY_MAPPING.keySet().forEach(
+			key -> updateSummary(settings, key));
+		updateSummary(settings, "passwd");
+	}
+
+	private void updateProfiles() {
+		var names = SftpProfiles.names(getPreferenceScreen()
+			.getSharedPreferences());
+		var entries = names.stream()
+			.map(n -> SftpProfiles.DEFAULT.equals(n) ?
+				getString(R.string.default_profile) : n)
+			.toArray(CharSequence[]::new);
+		var profile = (ListPreference) findPreference("editing_profile");
+		profile.setEntries(entries);
+		profile.setEntryValues(names.toArray(new CharSequence[0]));
+		if (!names.contains(editing)) {
+			edit(SftpProfiles.DEFAULT);
+		}
+		profile.setValue(editing);
+		profile.setSummary(profile.getEntry());
+	}
+
+	// points per-profile preferences at the profile
+	private void edit(String name) {
+		var old = getEditingPreferences();
+		if (!SftpProfiles.DEFAULT.equals(editing)) {
+			old.unregisterOnSharedPreferenceChangeListener(this);
+		}
+		editing = name;
+		var settings = getEditingPreferences();
+		var isDefault = SftpProfiles.DEFAULT.equals(name);
+		if (!isDefault) {
+			settings.registerOnSharedPreferenceChangeListener(this);
+		}
+		for (var key : SftpProfiles.KEYS) {
+			var pref = (EditTextPreference) findPreference(key);
+			pref.setPreferenceDataStore(isDefault ? null :
+				new ProfileDataStore(settings));
+			var value = settings.getString(key, "port".equals(key) ? "22" : "");
+			// also persists, leave untouched ones alone
+			if (!value.equals(pref.getText())) {
+				pref.setText(value);
 			}
-		});
-		if (!settings.getString("passwd", "").equals("")) {
-			findPreference("passwd").setSummary(
-				getString(R.string.passwd_filled));
+			updateSummary(settings, key);
 		}
+		var profile = (ListPreference) findPreference("editing_profile");
+		profile.setValue(name);
+		profile.setSummary(profile.getEntry());
 	}
 
-	@Override
-	public void onSharedPreferenceChanged(SharedPreferences settings, String key) {
-		var params = SftpConnectionParameters.fromSharedPreferences(settings);
-		getActivity().getContentResolver().notifyChange(params.getRootContentUri(), null);
+	private void updateSummary(SharedPreferences settings, String key) {
 		var resIdBoxed = EMPTY_SUMMARY_MAPPING.get(key);
 		if (resIdBoxed != null) {
 			var val = settings.getString(key, "");
@@ -98,4 +161,21 @@ public class SettingsFragment extends PreferenceFragment
 					R.string.passwd_summary : R.string.passwd_filled));
 		}
 	}
+
+	@Override
+	public void onSharedPreferenceChanged(SharedPreferences settings, String key) {
+		if (SftpProfiles.NAMES_KEY.equals(key)) {
+			updateProfiles();
+			return;
+		}
+		// shared ones are always in the default preferences
+		if (SftpProfiles.KEYS.contains(key) &&
+				settings != getEditingPreferences()) {
+			return;
+		}
+		var params = SftpConnectionParameters.fromSharedPreferences(
+			getEditingPreferences());
+		getActivity().getContentResolver().notifyChange(params.getRootContentUri(), null);
+		updateSummary(settings, key);
+	}
 }
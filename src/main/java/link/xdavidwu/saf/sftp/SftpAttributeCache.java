@@ -0,0 +1,89 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.time.Duration;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+/*
+ * Attributes of files by path, from listings and single stats.
+ *
+ * Some paths are only known with symlinks followed (e.g. via stat of parent,
+ * or . in listings), these only answer getStat().
+ */
+public class SftpAttributeCache {
+
+	private record Entry(SftpFileAttributes attributes,
+			SftpClient.Attributes stat, long time) {}
+
+	private final Duration ttl;
+	private final LruCache<String, Entry> entries;
+
+	public SftpAttributeCache(Duration ttl, int maxEntries) {
+		this.ttl = ttl;
+		this.entries = maxEntries > 0 ? new LruCache<>(maxEntries) : null;
+	}
+
+	private Entry getFresh(String path) {
+		if (entries == null) {
+			return null;
+		}
+		var entry = entries.get(path);
+		if (entry == null) {
+			return null;
+		}
+		if (SystemClock.elapsedRealtime() - entry.time() >= ttl.toMillis()) {
+			entries.remove(path);
+			return null;
+		}
+		return entry;
+	}
+
+	public SftpFileAttributes getAttributes(String path) {
+		var entry = getFresh(path);
+		return entry != null ? entry.attributes() : null;
+	}
+
+	public SftpClient.Attributes getStat(String path) {
+		var entry = getFresh(path);
+		return entry != null ? entry.stat() : null;
+	}
+
+	public void put(String path, SftpFileAttributes attributes) {
+		if (entries != null) {
+			entries.put(path, new Entry(attributes, attributes.stat(),
+				SystemClock.elapsedRealtime()));
+		}
+	}
+
+	public void putStat(String path, SftpClient.Attributes stat) {
+		if (entries == null) {
+			return;
+		}
+		var existing = getFresh(path);
+		entries.put(path, new Entry(
+			existing != null ? existing.attributes() : null, stat,
+			SystemClock.elapsedRealtime()));
+	}
+
+	public void invalidate(String path) {
+		if (entries != null) {
+			entries.remove(path);
+		}
+	}
+
+	// path and everything below it
+	public void invalidateTree(String path) {
+		if (entries == null) {
+			return;
+		}
+		var prefix = path + "/";
+		for (var k : entries.snapshot().keySet()) {
+			if (k.equals(path) || k.startsWith(prefix)) {
+				entries.remove(k);
+			}
+		}
+	}
+}
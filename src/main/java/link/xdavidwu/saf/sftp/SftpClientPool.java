@@ -0,0 +1,278 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.SshException;
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.channel.exception.SshChannelOpenException;
+import org.apache.sshd.sftp.client.FullAccessSftpClient;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.SftpClientFactory;
+import org.apache.sshd.sftp.common.SftpException;
+
+/*
+ * Bounded pool of initialized SFTP channels over a session. Clients returned
+ * by borrow() go back to the pool when closed, instead of closing the channel.
+ *
+ * Clients held for long, e.g. by opened files, are counted against a share
+ * of maxClients of their own, so that they cannot starve short queries like
+ * listings, while the session never has more than maxClients channels.
+ *
+ * Waiters are served in FIFO order when the pool is exhausted. Channels idle
+ * for too long are closed. Channels found closing, or that failed below the
+ * SFTP level while borrowed, are never handed out again.
+ */
+public class SftpClientPool implements AutoCloseable {
+	private static final String TAG = "SftpClientPool";
+	private static final long POLL_MILLIS = 100;
+	private static final Duration BORROW_TIMEOUT = Duration.ofSeconds(30);
+
+	private static record ChannelClosedFutureAdaptor(
+			CompletableFuture<Void> future) implements ChannelListener {
+		public ChannelClosedFutureAdaptor() {
+			this(new CompletableFuture<>());
+		}
+
+		@Override
+		public void channelClosed(Channel c, Throwable r) {
+			Log.i(TAG, "channel released");
+			future.complete(null);
+		}
+	}
+
+	private record IdleClient(SftpClient client, long since) {}
+
+	private final ClientSession session;
+	private final Semaphore permits;
+	private final Semaphore longLivedPermits;
+	private final Duration idleTimeout;
+	private final Deque<IdleClient> idle = new ArrayDeque<>();
+	private volatile boolean closed;
+
+	public SftpClientPool(ClientSession session, int maxClients,
+			Duration idleTimeout) {
+		this.session = session;
+		// too few to split, shared then
+		if (maxClients < 2) {
+			this.permits = new Semaphore(maxClients, true);
+			this.longLivedPermits = permits;
+		} else {
+			var longLived = maxClients / 2;
+			this.permits = new Semaphore(maxClients - longLived, true);
+			this.longLivedPermits = new Semaphore(longLived, true);
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	public ClientSession session() {
+		return session;
+	}
+
+	public SftpClient borrow(CancellationSignal signal) throws IOException {
+		return borrow(permits, signal);
+	}
+
+	// for clients kept for long, e.g. by opened files
+	public SftpClient borrowLongLived(CancellationSignal signal)
+			throws IOException {
+		return borrow(longLivedPermits, signal);
+	}
+
+	// for channels of other kinds kept for long, e.g. exec, to be counted
+	// with long-lived clients; closing the returned one gives it back
+	public Closeable reserveLongLived(CancellationSignal signal)
+			throws IOException {
+		acquire(longLivedPermits, signal);
+		var released = new AtomicBoolean();
+		return () -> {
+			if (released.compareAndSet(false, true)) {
+				longLivedPermits.release();
+			}
+		};
+	}
+
+	private SftpClient borrow(Semaphore permits, CancellationSignal signal)
+			throws IOException {
+		acquire(permits, signal);
+		try {
+			var client = pollIdle();
+			return wrap(client != null ? client : create(signal), permits);
+		} catch (IOException|RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void acquire(Semaphore permits, CancellationSignal signal)
+			throws IOException {
+		var deadline = SystemClock.elapsedRealtime() + BORROW_TIMEOUT.toMillis();
+		try {
+			while (!permits.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (signal != null) {
+					signal.throwIfCanceled();
+				}
+				if (closed) {
+					throw new IOException("SFTP channel pool closed");
+				}
+				if (SystemClock.elapsedRealtime() > deadline) {
+					throw new IOException("timed out waiting for SFTP channel");
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted waiting for SFTP channel");
+		}
+	}
+
+	private SftpClient pollIdle() {
+		synchronized (idle) {
+			evictIdle();
+			// most recently used first, so that extra ones can time out
+			while (!idle.isEmpty()) {
+				var client = idle.pollLast().client();
+				if (isHealthy(client)) {
+					return client;
+				}
+				closeQuietly(client);
+			}
+		}
+		return null;
+	}
+
+	private void evictIdle() {
+		var expiry = SystemClock.elapsedRealtime() - idleTimeout.toMillis();
+		while (!idle.isEmpty() && idle.peekFirst().since() < expiry) {
+			Log.v(TAG, "closing idle channel");
+			closeQuietly(idle.pollFirst().client());
+		}
+	}
+
+	private SftpClient create(CancellationSignal signal) throws IOException {
+		var retries = 3;
+		while (true) {
+			try {
+				// TODO consider allowing newer protocol without permission handling
+				// (or find some way to translate id/names)
+				return SftpClientFactory.instance()
+					.createSftpClient(session, 3);
+			} catch (SshException e) {
+				var c = e.getCause();
+				if (c instanceof SshChannelOpenException s) {
+					var code = s.getReasonCode();
+					// openssh uses SSH_OPEN_CONNECT_FAILED
+					var temporary = code == SshConstants.SSH_OPEN_CONNECT_FAILED ||
+						code == SshConstants.SSH_OPEN_RESOURCE_SHORTAGE;
+					if (temporary && retries-- != 0) {
+						Log.i(TAG, "temporary open channel failure (server allows less concurrent channels than the pool?), waiting for any existing channel to close");
+						if (signal != null) {
+							signal.throwIfCanceled();
+						}
+						// idle ones are the cheapest to give back
+						synchronized (idle) {
+							if (!idle.isEmpty()) {
+								closeQuietly(idle.pollFirst().client());
+								continue;
+							}
+						}
+
+						var adaptor = new ChannelClosedFutureAdaptor();
+						session.addChannelListener(adaptor);
+						try {
+							adaptor.future().get(1, TimeUnit.SECONDS);
+						} catch (TimeoutException|ExecutionException|InterruptedException e2) {}
+						session.removeChannelListener(adaptor);
+						continue;
+					}
+				}
+				throw e;
+			}
+		}
+	}
+
+	private boolean isHealthy(SftpClient client) {
+		return client.isOpen() && !client.getClientChannel().isClosing() &&
+			session.isOpen() && !session.isClosing();
+	}
+
+	private void release(SftpClient client, Semaphore permits,
+			boolean broken) {
+		synchronized (idle) {
+			if (!closed && !broken && isHealthy(client)) {
+				idle.addLast(new IdleClient(client,
+					SystemClock.elapsedRealtime()));
+			} else {
+				closeQuietly(client);
+			}
+			evictIdle();
+		}
+		permits.release();
+	}
+
+	private SftpClient wrap(SftpClient client, Semaphore permits) {
+		if (!(client instanceof FullAccessSftpClient)) {
+			throw new IllegalStateException("unexpected SftpClient type");
+		}
+		var released = new AtomicBoolean();
+		var broken = new AtomicBoolean();
+		return (SftpClient) Proxy.newProxyInstance(
+			SftpClient.class.getClassLoader(),
+			new Class<?>[] {FullAccessSftpClient.class},
+			(proxy, method, args) -> {
+				if ("close".equals(method.getName()) &&
+						method.getParameterCount() == 0) {
+					if (!released.getAndSet(true)) {
+						release(client, permits, broken.get());
+					}
+					return null;
+				}
+				try {
+					return method.invoke(client, args);
+				} catch (InvocationTargetException e) {
+					var cause = e.getCause();
+					// SFTP status errors leave the channel usable
+					if (cause instanceof IOException &&
+							!(cause instanceof SftpException)) {
+						broken.set(true);
+					}
+					throw cause;
+				}
+			});
+	}
+
+	private static void closeQuietly(SftpClient client) {
+		try {
+			client.close();
+		} catch (IOException e) {
+			Log.w(TAG, "failed to close channel", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (idle) {
+			while (!idle.isEmpty()) {
+				closeQuietly(idle.pollFirst().client());
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.extensions.CopyDataExtension;
+import org.apache.sshd.sftp.client.extensions.CopyFileExtension;
+
+/*
+ * A lazily established session with its pool of channels, kept alive with
+ * heartbeats in the background while it is being used.
+ *
+ * Callers skip probing the session if it has been proven alive recently, and
+ * a dead session found by heartbeats is replaced right away.
+ */
+public class SftpConnection implements AutoCloseable {
+	private static final String TAG = "SftpConnection";
+	private static final String HEARTBEAT_REQUEST = "keepalive@sftp.saf.xdavidwu.link";
+	private static final Duration HEARTBEAT_TIMEOUT = Duration.ofSeconds(3);
+	private static final Duration HEARTBEAT_INTERVAL = Duration.ofSeconds(10);
+	// a session proven alive within this is used without probing
+	private static final Duration LIVENESS_WINDOW = Duration.ofSeconds(15);
+	// stop heartbeats once unused for this long
+	private static final Duration IDLE_LINGER = Duration.ofMinutes(5);
+	private static final Duration CHANNEL_IDLE_TIMEOUT = Duration.ofMinutes(1);
+
+	private final SftpConnectionParameters params;
+	private final SftpTuningParameters tuning;
+	private final HandlerThread heartbeatThread;
+	private final Handler heartbeatHandler;
+	private final SftpDirectoryCache directoryCache;
+	private final SftpAttributeCache attributeCache;
+	private final SftpSearchCache searchCache;
+	private final SftpPreopenedFiles preopenedFiles;
+
+	private ClientSession session;
+	private SftpClientPool pool;
+	// non-null while a session is being established
+	private CompletableFuture<SftpClientPool> connecting;
+	private volatile long lastAlive;
+	private volatile long lastUsed;
+	private volatile boolean closed;
+	// heartbeats stop when idle, and are resumed on use
+	private final AtomicBoolean heartbeatScheduled = new AtomicBoolean();
+	// null until a channel is up
+	private volatile Boolean supportsServerCopy;
+
+	public SftpConnection(SftpConnectionParameters params,
+			SftpTuningParameters tuning) {
+		this.params = params;
+		this.tuning = tuning;
+		heartbeatThread = new HandlerThread("heartbeat thread");
+		heartbeatThread.start();
+		heartbeatHandler = new Handler(heartbeatThread.getLooper());
+		directoryCache = new SftpDirectoryCache(
+			Duration.ofSeconds(tuning.directoryCacheTtlSeconds()),
+			tuning.directoryCacheMaxEntries());
+		attributeCache = new SftpAttributeCache(
+			Duration.ofSeconds(tuning.attributeCacheTtlSeconds()),
+			tuning.attributeCacheMaxEntries());
+		searchCache = new SftpSearchCache(
+			Duration.ofSeconds(tuning.directoryCacheTtlSeconds()));
+		// leave most of the channels to others
+		preopenedFiles = new SftpPreopenedFiles(
+			Math.max(1, tuning.maxChannels() / 4), heartbeatHandler);
+	}
+
+	public SftpConnectionParameters params() {
+		return params;
+	}
+
+	public SftpTuningParameters tuning() {
+		return tuning;
+	}
+
+	public SftpDirectoryCache directoryCache() {
+		return directoryCache;
+	}
+
+	public SftpAttributeCache attributeCache() {
+		return attributeCache;
+	}
+
+	public SftpSearchCache searchCache() {
+		return searchCache;
+	}
+
+	public SftpPreopenedFiles preopenedFiles() {
+		return preopenedFiles;
+	}
+
+	// e.g. for exec channels, not to be closed by callers
+	public ClientSession getSession() throws IOException {
+		lastUsed = SystemClock.elapsedRealtime();
+		return ensurePool().session();
+	}
+
+	// closing the returned client returns it to the pool
+	public SftpClient getClient(CancellationSignal signal) throws IOException {
+		lastUsed = SystemClock.elapsedRealtime();
+		var client = ensurePool().borrow(signal);
+		if (supportsServerCopy == null) {
+			supportsServerCopy =
+				client.getExtension(CopyFileExtension.class).isSupported() ||
+				client.getExtension(CopyDataExtension.class).isSupported();
+		}
+		return client;
+	}
+
+	// for clients kept for long, e.g. by opened files, not to starve queries
+	public SftpClient getLongLivedClient(CancellationSignal signal)
+			throws IOException {
+		lastUsed = SystemClock.elapsedRealtime();
+		return ensurePool().borrowLongLived(signal);
+	}
+
+	// to hold while using a channel of the session directly, e.g. exec
+	public Closeable reserveLongLivedChannel(CancellationSignal signal)
+			throws IOException {
+		lastUsed = SystemClock.elapsedRealtime();
+		return ensurePool().reserveLongLived(signal);
+	}
+
+	// via copy-file or copy-data, false if not known yet
+	public boolean supportsServerCopy() {
+		return Boolean.TRUE.equals(supportsServerCopy);
+	}
+
+	// the monitor is not held across round trips, so that callers with a live
+	// session are not stuck behind a probe or a connect
+	private SftpClientPool ensurePool() throws IOException {
+		if (closed) {
+			throw new IOException("connection closed");
+		}
+		scheduleHeartbeat();
+		ClientSession s;
+		SftpClientPool p;
+		CompletableFuture<SftpClientPool> attempt;
+		synchronized (this) {
+			s = session;
+			p = pool;
+			attempt = connecting;
+		}
+		if (attempt == null && s != null && !s.isClosing()) {
+			var sinceAlive = SystemClock.elapsedRealtime() - lastAlive;
+			if (sinceAlive < LIVENESS_WINDOW.toMillis() || probe(s)) {
+				return p;
+			}
+			Log.i(TAG, "session heartbeat failed, creating new session");
+		}
+		return reconnect(s);
+	}
+
+	// replaces stale, unless already replaced, sharing one attempt among callers
+	private SftpClientPool reconnect(ClientSession stale) throws IOException {
+		CompletableFuture<SftpClientPool> attempt;
+		var owner = false;
+		synchronized (this) {
+			if (connecting != null) {
+				attempt = connecting;
+			} else if (session != stale && session != null &&
+					!session.isClosing()) {
+				return pool;
+			} else {
+				reset();
+				attempt = connecting = new CompletableFuture<>();
+				owner = true;
+			}
+		}
+		if (owner) {
+			return connect(attempt);
+		}
+
+		try {
+			return attempt.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while connecting");
+		} catch (ExecutionException e) {
+			var cause = e.getCause();
+			if (cause instanceof RuntimeException r) {
+				throw r;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	private SftpClientPool connect(CompletableFuture<SftpClientPool> attempt)
+			throws IOException {
+		try {
+			var s = params.connect();
+			var p = new SftpClientPool(s, tuning.maxChannels(),
+				CHANNEL_IDLE_TIMEOUT);
+			synchronized (this) {
+				if (closed) {
+					p.close();
+					s.close();
+					throw new IOException("connection closed");
+				}
+				session = s;
+				pool = p;
+				lastAlive = SystemClock.elapsedRealtime();
+				connecting = null;
+			}
+			attempt.complete(p);
+			return p;
+		} catch (IOException|RuntimeException e) {
+			synchronized (this) {
+				connecting = null;
+			}
+			attempt.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private boolean probe(ClientSession session) {
+		// org.apache.sshd.client.session.ClientConnectionService::sendHeartBeat
+		var buf = session.createBuffer(
+			SshConstants.SSH_MSG_GLOBAL_REQUEST,
+			HEARTBEAT_REQUEST.length() + Byte.SIZE);
+		buf.putString(HEARTBEAT_REQUEST);
+		buf.putBoolean(true);
+		try {
+			session.request(HEARTBEAT_REQUEST, buf, HEARTBEAT_TIMEOUT);
+			lastAlive = SystemClock.elapsedRealtime();
+			return true;
+		} catch (IOException e) {
+			Log.i(TAG, "session heartbeat failed", e);
+			return false;
+		}
+	}
+
+	private void scheduleHeartbeat() {
+		if (heartbeatScheduled.compareAndSet(false, true)) {
+			heartbeatHandler.postDelayed(heartbeat,
+				HEARTBEAT_INTERVAL.toMillis());
+		}
+	}
+
+	private final Runnable heartbeat = new Runnable() {
+		@Override
+		public void run() {
+			ClientSession s;
+			synchronized (SftpConnection.this) {
+				s = session;
+			}
+			var now = SystemClock.elapsedRealtime();
+			if (closed || now - lastUsed > IDLE_LINGER.toMillis()) {
+				Log.v(TAG, "connection idle, stopping heartbeats");
+				heartbeatScheduled.set(false);
+				// raced with a use that saw it still scheduled
+				if (!closed && SystemClock.elapsedRealtime() - lastUsed <=
+						IDLE_LINGER.toMillis()) {
+					scheduleHeartbeat();
+				}
+				return;
+			}
+
+			// null after a failed reconnect
+			if (s == null || s.isClosing() ||
+					(now - lastAlive >= HEARTBEAT_INTERVAL.toMillis() &&
+					!probe(s))) {
+				Log.i(TAG, "session died, reconnecting");
+				synchronized (SftpConnection.this) {
+					if (s != null && session == s) {
+						reset();
+					}
+				}
+				try {
+					ensurePool();
+				} catch (IOException e) {
+					// tried again on next heartbeat, unless idle by then
+					Log.w(TAG, "failed to reconnect", e);
+				}
+			}
+			heartbeatHandler.postDelayed(this, HEARTBEAT_INTERVAL.toMillis());
+		}
+	};
+
+	private synchronized void reset() {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		if (session != null) {
+			try {
+				session.close();
+			} catch (IOException e) {
+				Log.w(TAG, "failed to close session", e);
+			}
+			session = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		preopenedFiles.close();
+		heartbeatHandler.removeCallbacks(heartbeat);
+		heartbeatThread.quitSafely();
+		reset();
+	}
+}
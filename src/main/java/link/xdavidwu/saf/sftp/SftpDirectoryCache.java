@@ -0,0 +1,202 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+/*
+ * Directory listings by documentId, bounded by total number of entries.
+ *
+ * Listings older than ttl are still returned, so that callers may serve them
+ * while refreshing in the background.
+ *
+ * Listings published from the background are held outside of the LRU until
+ * served once, so that partial ones and ones too large to fit still reach the
+ * query that follows the notification.
+ *
+ * Listings read page by page may share pages, see Pages.
+ */
+public class SftpDirectoryCache {
+
+	// entries are keyed by filename, in the order listed by server
+	public record Listing(SftpClient.Attributes attributes,
+			Map<String, SftpFileAttributes> entries, long time,
+			boolean complete) {}
+
+	/*
+	 * Read-only concatenation of pages, which must not be modified once
+	 * added, so that a listing still being read is published by copying
+	 * references to pages, instead of the entries read so far.
+	 *
+	 * Lookups are linear in number of pages, which are few.
+	 */
+	public static final class Pages
+			extends AbstractMap<String, SftpFileAttributes> {
+		private final Map<String, SftpFileAttributes>[] pages;
+		private final int size;
+
+		@SuppressWarnings("unchecked")
+		public Pages(List<Map<String, SftpFileAttributes>> pages) {
+			this.pages = pages.toArray(new Map[0]);
+			var size = 0;
+			for (var page : this.pages) {
+				size += page.size();
+			}
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			for (var page : pages) {
+				if (page.containsKey(key)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public SftpFileAttributes get(Object key) {
+			for (var page : pages) {
+				var value = page.get(key);
+				if (value != null) {
+					return value;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void forEach(
+				BiConsumer<? super String, ? super SftpFileAttributes> action) {
+			for (var page : pages) {
+				page.forEach(action);
+			}
+		}
+
+		@Override
+		public Set<Map.Entry<String, SftpFileAttributes>> entrySet() {
+			return new AbstractSet<>() {
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, SftpFileAttributes>> iterator() {
+					return Arrays.stream(pages)
+						.flatMap(page -> Collections.unmodifiableMap(page)
+							.entrySet().stream())
+						.iterator();
+				}
+			};
+		}
+	}
+
+	private final Duration ttl;
+	private final LruCache<String, Listing> listings;
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+	private final Map<String, Listing> published = new ConcurrentHashMap<>();
+
+	public SftpDirectoryCache(Duration ttl, int maxEntries) {
+		this.ttl = ttl;
+		this.listings = maxEntries > 0 ?
+			new LruCache<String, Listing>(maxEntries) {
+				@Override
+				protected int sizeOf(String key, Listing value) {
+					return value.entries().size() + 1;
+				}
+			} : null;
+	}
+
+	public Listing get(String documentId) {
+		var listing = published.get(documentId);
+		if (listing != null) {
+			if (listing.complete()) {
+				published.remove(documentId, listing);
+			}
+			return listing;
+		}
+		return listings != null ? listings.get(documentId) : null;
+	}
+
+	public boolean isFresh(Listing listing) {
+		return SystemClock.elapsedRealtime() - listing.time() < ttl.toMillis();
+	}
+
+	public Listing put(String documentId, SftpClient.Attributes attributes,
+			Map<String, SftpFileAttributes> entries) {
+		var listing = new Listing(attributes, entries,
+			SystemClock.elapsedRealtime(), true);
+		if (listings != null) {
+			listings.put(documentId, listing);
+		}
+		return listing;
+	}
+
+	// entries must not be modified afterwards
+	public Listing publish(String documentId, SftpClient.Attributes attributes,
+			Map<String, SftpFileAttributes> entries, boolean complete) {
+		var listing = new Listing(attributes, entries,
+			SystemClock.elapsedRealtime(), complete);
+		if (complete && listings != null) {
+			listings.put(documentId, listing);
+			if (listings.get(documentId) == listing) {
+				published.remove(documentId);
+				return listing;
+			}
+		}
+		published.put(documentId, listing);
+		return listing;
+	}
+
+	public void invalidate(String documentId) {
+		published.remove(documentId);
+		if (listings != null) {
+			listings.remove(documentId);
+		}
+	}
+
+	// documentId and everything below it
+	public void invalidateTree(String documentId) {
+		var prefix = documentId + "/";
+		published.keySet().removeIf(
+			k -> k.equals(documentId) || k.startsWith(prefix));
+		if (listings != null) {
+			for (var k : listings.snapshot().keySet()) {
+				if (k.equals(documentId) || k.startsWith(prefix)) {
+					listings.remove(k);
+				}
+			}
+		}
+	}
+
+	// returns false if a refresh is already running
+	public boolean beginRefresh(String documentId) {
+		return refreshing.add(documentId);
+	}
+
+	public void endRefresh(String documentId) {
+		published.computeIfPresent(documentId,
+			(k, listing) -> listing.complete() ? listing : null);
+		refreshing.remove(documentId);
+	}
+}
@@ -1,7 +1,11 @@
 package link.xdavidwu.saf.sftp;
 
 import android.app.AuthenticationRequiredException;
+import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
@@ -12,11 +16,13 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.IBinder;
 import android.os.Looper;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
 import android.os.storage.StorageManager;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
@@ -26,76 +32,198 @@ import android.system.OsConstants;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.apache.sshd.client.SshClient;
-import org.apache.sshd.client.session.ClientSession;
-import org.apache.sshd.common.SshConstants;
-import org.apache.sshd.common.SshException;
-import org.apache.sshd.common.channel.Channel;
-import org.apache.sshd.common.channel.ChannelListener;
-import org.apache.sshd.common.channel.exception.SshChannelOpenException;
+import org.apache.sshd.client.channel.ClientChannelEvent;
 import org.apache.sshd.common.util.io.PathUtils;
+import org.apache.sshd.common.util.io.output.NullOutputStream;
 import org.apache.sshd.sftp.client.SftpClient;
-import org.apache.sshd.sftp.client.SftpClientFactory;
+import org.apache.sshd.sftp.client.extensions.CopyDataExtension;
+import org.apache.sshd.sftp.client.extensions.CopyFileExtension;
 import org.apache.sshd.sftp.client.extensions.SpaceAvailableExtension;
+import org.apache.sshd.sftp.client.extensions.openssh.OpenSSHPosixRenameExtension;
 import org.apache.sshd.sftp.client.extensions.openssh.OpenSSHStatPathExtension;
 import org.apache.sshd.sftp.common.SftpConstants;
 import org.apache.sshd.sftp.common.SftpException;
 
 import link.xdavidwu.saf.AbstractUnixLikeDocumentsProvider;
+import link.xdavidwu.saf.BlockCache;
+import link.xdavidwu.saf.FileVersion;
+import link.xdavidwu.saf.LooperPool;
 import link.xdavidwu.saf.PerformsIO;
 import link.xdavidwu.saf.UncheckedAutoCloseable;
-import link.xdavidwu.saf.UriAsDocumentId;
+import link.xdavidwu.saf.metadata.MetadataCache;
 import link.xdavidwu.saf.metadata.SuppliesMetadataViaProviders;
 import link.xdavidwu.saf.thumbnails.SuppliesThumbnailsViaProviders;
+import link.xdavidwu.saf.thumbnails.SuppliesThumbnailsViaXdg;
+import link.xdavidwu.saf.thumbnails.ThumbnailCache;
+import link.xdavidwu.saf.thumbnails.ThumbnailScheduler;
+import link.xdavidwu.saf.thumbnails.ThumbnailsProvider;
 
-// TODO XDG thumbnails
 public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
-		implements PerformsIO, UriAsDocumentId, SuppliesMetadataViaProviders,
-			SuppliesThumbnailsViaProviders {
+		implements PerformsIO, SuppliesMetadataViaProviders,
+			SuppliesThumbnailsViaProviders, SuppliesThumbnailsViaXdg {
 	private static final String TAG = "SFTP";
 	private static final String AUTHORITY = "link.xdavidwu.saf.sftp";
+	private static final Duration LISTING_NOTIFY_INTERVAL = Duration.ofSeconds(1);
+	private static final Duration OFFLINE_SYNC_INTERVAL = Duration.ofMinutes(15);
+	private static final Duration EXEC_TIMEOUT = Duration.ofSeconds(10);
+	private static final int SEARCH_BATCH_SIZE = 128;
+	// walks stop here, and the tree is not kept for later searches; also caps
+	// results of find
+	private static final int MAX_WALK_ENTRIES = 100000;
+	private static final int MAX_INDEX_RESULTS = 1000;
+	// as FileUtils.buildUniqueFile()
+	private static final int MAX_UNIQUE_NAME_ATTEMPTS = 32;
+	private static final int MAX_RECENTS = 64;
+	// directories listed more recently are not crawled again
+	private static final Duration CRAWL_INTERVAL = Duration.ofHours(6);
+	// between listings, to go easy on the server
+	private static final Duration CRAWL_DELAY = Duration.ofMillis(200);
+	private static final Duration CLOSE_WAIT_TIMEOUT = Duration.ofSeconds(30);
+	// for all profiles together
+	private static final Duration ROOTS_QUERY_TIMEOUT = Duration.ofSeconds(3);
 
-	protected static record ChannelClosedFutureAdaptor(
-			CompletableFuture<Void> future) implements ChannelListener {
-		public ChannelClosedFutureAdaptor() {
-			this(new CompletableFuture<>());
+	/*
+	 * A connection profile served as a root. Everything about a server lives
+	 * here, so that reconfiguring one profile leaves the others warm.
+	 */
+	private static class Profile {
+		final String name;
+		final SharedPreferences sp;
+		final SftpConnection conn;
+		final String rootDocumentId;
+		// opened files are spread over these
+		final LooperPool loopers;
+		final SftpOfflineMirror offlineMirror;
+		// relative to root, without trailing slash, root itself is empty
+		final List<String> pinnedPaths;
+		final AtomicBoolean offlineSyncing = new AtomicBoolean();
+		volatile long lastOfflineSync;
+		final AtomicBoolean crawling = new AtomicBoolean();
+		// recursive deletions in progress, canceled on reconfiguration
+		final Set<CancellationSignal> deletions =
+			ConcurrentHashMap.newKeySet();
+		volatile CompletableFuture<Optional<FsCreds>> fsCreds;
+		volatile boolean closed;
+		// of released files, by path, for reopens to wait for
+		final Map<String, CompletableFuture<Void>> closing =
+			new ConcurrentHashMap<>();
+
+		Profile(String name, SharedPreferences sp,
+				SftpTuningParameters tuning, File offlineDir) {
+			this.name = name;
+			this.sp = sp;
+			conn = new SftpConnection(
+				SftpConnectionParameters.fromSharedPreferences(sp), tuning);
+			rootDocumentId = conn.params().getRootDocumentId().toString();
+			loopers = new LooperPool("IO thread " + name, tuning.ioThreads());
+			offlineMirror = new SftpOfflineMirror(offlineDir);
+			pinnedPaths = Arrays.stream(
+					sp.getString("pinned_paths", "").split("\n"))
+				.map(String::strip).filter(p -> !p.isEmpty())
+				.map(p -> p.replaceAll("^/*", "/").replaceAll("/+$", ""))
+				.distinct().collect(Collectors.toList());
 		}
 
-		@Override
-		public void channelClosed(Channel c, Throwable r) {
-			Log.i(TAG, "channel released");
-			future.complete(null);
+		void addClosing(String path, CompletableFuture<Void> f) {
+			var all = closing.merge(path, f, CompletableFuture::allOf);
+			all.whenComplete((v, e) -> closing.remove(path, all));
+		}
+
+		// e.g. reopened right after written, so that writes deferred to
+		// close are seen, bounded in case the server is gone
+		void awaitClosing(String path, CancellationSignal signal) {
+			var f = closing.get(path);
+			if (f == null) {
+				return;
+			}
+			var deadline = SystemClock.elapsedRealtime() +
+				CLOSE_WAIT_TIMEOUT.toMillis();
+			while (SystemClock.elapsedRealtime() < deadline) {
+				try {
+					f.get(100, TimeUnit.MILLISECONDS);
+					return;
+				} catch (TimeoutException e) {
+					if (signal != null) {
+						signal.throwIfCanceled();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new OperationCanceledException("interrupted");
+				} catch (ExecutionException e) {
+					return;
+				}
+			}
+			Log.w(TAG, "still closing " + path + ", going ahead");
+		}
+
+		void close() {
+			closed = true;
+			deletions.forEach(CancellationSignal::cancel);
+			conn.close();
+			loopers.close();
 		}
 	}
 
-	private static final String HEARTBEAT_REQUEST = "keepalive@sftp.saf.xdavidwu.link";
-	private ClientSession session;
-	private SftpConnectionParameters params;
+	// by name, in the order configured
+	private volatile Map<String, Profile> profiles = Map.of();
+	private volatile SftpTuningParameters tuning;
 
-	private CompletableFuture<Optional<FsCreds>> fsCreds;
+	private ThumbnailCache thumbnailCache;
+	private MetadataCache metadataCache;
+	private BlockCache blockCache;
+	private SftpTreeIndex treeIndex;
+	private volatile boolean treeIndexEnabled;
+	private ThumbnailScheduler thumbnailScheduler;
+	private long thumbnailCacheMaxBytes;
+	private List<ThumbnailsProvider> thumbnailsProviders;
+	// blocking jobs that may take long, e.g. searches, downloads, and closing
+	// released files, kept off the common pool
+	private ExecutorService backgroundExecutor;
 
 	private ContentResolver cr;
 	private ConnectivityManager cm;
 	private StorageManager sm;
-	private Handler ioHandler;
 	private Handler toastHandler;
 
 	private static final String[] DEFAULT_ROOT_PROJECTION = new String[] {
@@ -121,8 +249,15 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 
 	@Override
 	public String pathFromDocumentId(String documentId) {
-		return params.remotePath() +
-			UriAsDocumentId.super.pathFromDocumentId(documentId);
+		Profile p;
+		try {
+			p = profileOf(documentId);
+		} catch (FileNotFoundException e) {
+			throw new UncheckedIOException(e);
+		}
+		return p.conn.params().remotePath() +
+			// UriAsDocumentId, via SuppliesThumbnailsViaXdg
+			SuppliesThumbnailsViaXdg.super.pathFromDocumentId(documentId);
 	}
 
 	@Override
@@ -145,86 +280,146 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		toastHandler.sendMessage(toastHandler.obtainMessage(0, msg));
 	}
 
-	private void resetSession() {
-		if (session != null) {
-			try {
-				session.close();
-			} catch (IOException e) {
-				Log.w(TAG, "failed to close session", e);
-			}
-			session = null;
+	private SharedPreferences.OnSharedPreferenceChangeListener loadConfig =
+			(sp, key) -> {
+		if (SftpProfiles.KEYS.contains(key)) {
+			reloadProfiles(SftpProfiles.DEFAULT::equals);
+			return;
+		} else if (SftpProfiles.NAMES_KEY.equals(key)) {
+			reloadProfiles(name -> false);
+			return;
 		}
-	}
 
-	private SharedPreferences.OnSharedPreferenceChangeListener loadConfig =
+		// shared by all profiles
+		var oldTuning = tuning;
+		tuning = SftpTuningParameters.fromSharedPreferences(sp);
+		thumbnailCacheMaxBytes = Long.parseLong(
+			sp.getString("thumbnail_cache_mib", "64")) * 1024 * 1024;
+		thumbnailCache.setMaxBytes(thumbnailCacheMaxBytes);
+		metadataCache.setMaxEntries(Integer.parseInt(
+			sp.getString("metadata_cache_entries", "10000")));
+		blockCache.setMaxBytes(Long.parseLong(
+			sp.getString("block_cache_mib", "32")) * 1024 * 1024);
+		// leave some channels for browsing
+		thumbnailScheduler.setMaxConcurrency(
+			Math.max(1, tuning.maxChannels() / 2));
+		thumbnailsProviders = SuppliesThumbnailsViaProviders.defaultProviders(
+			tuning.headerPrefetchBytes());
+		var wasIndexing = treeIndexEnabled;
+		treeIndexEnabled = sp.getBoolean("tree_index", false);
+		// connections are built with tuning, the rest applies in place
+		if (!tuning.equals(oldTuning)) {
+			reloadProfiles(name -> true);
+		} else if (treeIndexEnabled != wasIndexing) {
+			profiles.values().forEach(this::crawlInBackground);
+			// recents come and go with it
+			cr.notifyChange(DocumentsContract.buildRootsUri(AUTHORITY), null, 0);
+		}
+	};
+
+	private SharedPreferences.OnSharedPreferenceChangeListener loadProfileConfig =
 			(sp, key) -> {
-		params = SftpConnectionParameters.fromSharedPreferences(sp);
-		resetSession();
-		fsCreds = null;
+		if (SftpProfiles.KEYS.contains(key)) {
+			profiles.values().stream().filter(p -> p.sp == sp).findFirst()
+				.ifPresent(p -> reloadProfiles(p.name::equals));
+		}
 	};
 
-	private ClientSession ensureSession() throws IOException {
-		if (session != null && !session.isClosing()) {
-			// org.apache.sshd.client.session.ClientConnectionService::sendHeartBeat
-			var buf = session.createBuffer(
-				SshConstants.SSH_MSG_GLOBAL_REQUEST,
-				HEARTBEAT_REQUEST.length() + Byte.SIZE);
-			buf.putString(HEARTBEAT_REQUEST);
-			buf.putBoolean(true);
-			try {
-				session.request(HEARTBEAT_REQUEST, buf,
-					Duration.ofSeconds(3));
-				return session;
-			} catch (IOException e) {
-				Log.i(TAG, "session heartbeat failed, creating new session", e);
+	// profiles not listed anymore are dropped, stale ones are reconnected,
+	// others are kept as is
+	private synchronized void reloadProfiles(Predicate<String> stale) {
+		var ctx = getContext();
+		var names = SftpProfiles.names(
+			PreferenceManager.getDefaultSharedPreferences(ctx));
+		var old = profiles;
+		var loaded = new LinkedHashMap<String, Profile>();
+		var started = new ArrayList<Profile>();
+		for (var name : names) {
+			var p = old.get(name);
+			if (p == null || stale.test(name)) {
+				if (p != null) {
+					p.close();
+				}
+				var sp = SftpProfiles.of(ctx, name);
+				if (!SftpProfiles.DEFAULT.equals(name)) {
+					sp.registerOnSharedPreferenceChangeListener(
+						loadProfileConfig);
+				}
+				// existing mirror of the default one predates profiles
+				p = new Profile(name, sp, tuning, new File(ctx.getFilesDir(),
+					SftpProfiles.DEFAULT.equals(name) ? "offline" :
+						"offline_" + Uri.encode(name)));
+				started.add(p);
+			}
+			var rootDocumentId = p.rootDocumentId;
+			if (loaded.values().stream()
+					.anyMatch(o -> o.rootDocumentId.equals(rootDocumentId))) {
+				// document ids cannot tell them apart
+				toast("Profile " + name + " duplicates another server and user");
+				p.close();
+				started.remove(p);
+				continue;
+			}
+			loaded.put(name, p);
+		}
+		old.forEach((name, p) -> {
+			if (!loaded.containsKey(name)) {
+				p.close();
+			}
+			if (!names.contains(name)) {
+				p.sp.unregisterOnSharedPreferenceChangeListener(
+					loadProfileConfig);
+				// unpinned along with the profile
+				CompletableFuture.runAsync(
+					() -> p.offlineMirror.retainOnly(Set.of()),
+					backgroundExecutor);
+			}
+		});
+		profiles = Collections.unmodifiableMap(loaded);
+
+		for (var p : started) {
+			syncPinned(p);
+			crawlInBackground(p);
+		}
+		cr.notifyChange(DocumentsContract.buildRootsUri(AUTHORITY), null, 0);
+	}
+
+	private Profile profileOf(String documentId) throws FileNotFoundException {
+		for (var p : profiles.values()) {
+			var root = p.rootDocumentId;
+			if (documentId.startsWith(root) && (documentId.length() ==
+					root.length() || documentId.charAt(root.length()) == '/')) {
+				return p;
 			}
-			resetSession();
 		}
-		session = params.connect();
-		return session;
+		throw new FileNotFoundException("No profile for " + documentId);
+	}
+
+	// what now serves the profile, if it got reconfigured
+	private Profile current(Profile p) {
+		var now = profiles.get(p.name);
+		return now != p ? now : null;
 	}
 
-	private synchronized SftpClient getClient(CancellationSignal signal) throws IOException {
+	// closing the returned client returns it to the pool
+	private SftpClient getClient(Profile p, CancellationSignal signal)
+			throws IOException {
 		// /shrug if we are somehow invoked on main thread
 		StrictMode.setThreadPolicy(StrictMode.ThreadPolicy.LAX);
 
-		var session = ensureSession();
-		var retries = 3;
-		while (true) {
-			try {
-				// TODO consider allowing newer protocol without permission handling
-				// (or find some way to translate id/names)
-				return SftpClientFactory.instance()
-					.createSftpClient(session, 3);
-			} catch (SshException e) {
-				var c = e.getCause();
-				if (c instanceof SshChannelOpenException s) {
-					var code = s.getReasonCode();
-					// openssh uses SSH_OPEN_CONNECT_FAILED
-					var temporary = code == SshConstants.SSH_OPEN_CONNECT_FAILED ||
-						code == SshConstants.SSH_OPEN_RESOURCE_SHORTAGE;
-					if (temporary && retries-- != 0) {
-						Log.i(TAG, "temporary open channel failure (hitting concurrent channels limit on server?), waiting for any existing channel to close");
-						if (signal != null) {
-							signal.throwIfCanceled();
-						}
+		return p.conn.getClient(signal);
+	}
 
-						var adaptor = new ChannelClosedFutureAdaptor();
-						session.addChannelListener(adaptor);
-						try {
-							adaptor.future().get(1, TimeUnit.SECONDS);
-						} catch (TimeoutException|ExecutionException|InterruptedException e2) {}
-						session.removeChannelListener(adaptor);
-						continue;
-					}
-				}
-				throw e;
-			}
-		}
+	private SftpClient getClient(Profile p) throws IOException {
+		return getClient(p, null);
 	}
 
-	private SftpClient getClient() throws IOException {
-		return getClient(null);
+	// for clients held for long, e.g. by opened files
+	private SftpClient getLongLivedClient(Profile p, CancellationSignal signal)
+			throws IOException {
+		StrictMode.setThreadPolicy(StrictMode.ThreadPolicy.LAX);
+
+		return p.conn.getLongLivedClient(signal);
 	}
 
 	@Override
@@ -233,15 +428,23 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		cr = ctx.getContentResolver();
 		sm = ctx.getSystemService(StorageManager.class);
 		cm = ctx.getSystemService(ConnectivityManager.class);
-		var ioThread = new HandlerThread("IO thread");
-		ioThread.start();
-		ioHandler = new Handler(ioThread.getLooper());
 		toastHandler = new Handler(Looper.getMainLooper(), msg -> {
 			Toast.makeText(ctx, "SAF-SFTP: " + msg.obj.toString(),
 				Toast.LENGTH_LONG).show();
 			return true;
 		});
 
+		// shared among connections, keys are qualified with authority
+		thumbnailCache = new ThumbnailCache(
+			new File(ctx.getCacheDir(), "thumbnails"), 0);
+		metadataCache = new MetadataCache(ctx,
+			new File(ctx.getCacheDir(), "metadata.db").getPath(), 0);
+		thumbnailScheduler = new ThumbnailScheduler(1);
+		blockCache = new BlockCache(0);
+		backgroundExecutor = Executors.newCachedThreadPool();
+		treeIndex = new SftpTreeIndex(ctx,
+			new File(ctx.getCacheDir(), "tree.db").getPath());
+
 		var sp = PreferenceManager.getDefaultSharedPreferences(ctx);
 		sp.registerOnSharedPreferenceChangeListener(loadConfig);
 		loadConfig.onSharedPreferenceChanged(sp, "");
@@ -277,15 +480,57 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 				"Mode " + mode + " not supported");
 		}
 
-		var sftp = ioToUnchecked(() -> getClient(signal));
 		var filename = pathFromDocumentId(documentId);
+		var writable = (parcelFileDescriptorMode &
+			ParcelFileDescriptor.MODE_WRITE_ONLY) != 0;
+		var p = profileOf(documentId);
+		var c = p.conn;
+		p.awaitClosing(filename, signal);
+		if (writable) {
+			// e.g. truncated on open
+			c.attributeCache().invalidate(filename);
+		} else {
+			var pinned = openPinned(p, documentId);
+			if (pinned != null) {
+				return pinned;
+			}
+		}
+		// just created by createDocument()
+		var preopened = writable ?
+			c.preopenedFiles().claim(filename) : null;
+		var sftp = preopened != null ? preopened.sftp() :
+			ioToUnchecked(() -> getLongLivedClient(p, signal));
+		Runnable onModified = () -> {
+			invalidate(c, documentId);
+			cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
+					AUTHORITY, toParentDocumentId(documentId)), null, 0);
+			if (isPinned(p, documentId)) {
+				syncPinned(p);
+			}
+		};
+		// so that reads of one file do not wait for those of another
+		var handler = p.loopers.acquire();
 		try {
-			var file = ioToUnchecked(() -> sftp.open(filename, sftpModes));
+			var file = preopened != null ? preopened.file() :
+				ioToUnchecked(() -> sftp.open(filename, sftpModes));
 			return ioToUnchecked(() -> sm.openProxyFileDescriptor(
 				parcelFileDescriptorMode,
-				new SftpProxyFileDescriptorCallback(sftp, file, getContext()),
-				ioHandler));
+				new SftpProxyFileDescriptorCallback(sftp, file, c.tuning(),
+					writable ? null : c.attributeCache(),
+					writable ? null : blockCache,
+					qualifiedPathFromDocumentId(documentId), onModified,
+					closing -> {
+						p.addClosing(filename, closing);
+						closing.whenComplete(
+							(v, e) -> p.loopers.release(handler));
+					}, backgroundExecutor, getContext()),
+				handler));
 		} catch (FileNotFoundException|UncheckedIOException e) {
+			p.loopers.release(handler);
+			if (preopened != null) {
+				SftpPreopenedFiles.closeQuietly(preopened);
+				throw e;
+			}
 			try {
 				sftp.close();
 			} catch (IOException e2) {}
@@ -293,51 +538,515 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		}
 	}
 
+	private boolean isPinned(Profile p, String documentId) {
+		var path = Uri.parse(documentId).getPath();
+		return p.pinnedPaths.stream().anyMatch(pin -> pin.isEmpty() ||
+			path.equals(pin) || path.startsWith(pin + "/"));
+	}
+
+	// null if not pinned, not mirrored yet, or changed on server
+	private ParcelFileDescriptor openPinned(Profile p, String documentId)
+			throws FileNotFoundException {
+		if (!isPinned(p, documentId)) {
+			return null;
+		}
+		var qualifiedPath = qualifiedPathFromDocumentId(documentId);
+		var offlineMirror = p.offlineMirror;
+		if (!offlineMirror.contains(qualifiedPath)) {
+			syncPinned(p);
+			return null;
+		}
+		var c = p.conn;
+
+		// not from attribute cache, which may predate changes from elsewhere
+		var path = pathFromDocumentId(documentId);
+		SftpClient.Attributes stat;
+		try (var sftp = getClient(p)) {
+			stat = sftp.stat(path);
+		} catch (SftpException e) {
+			// e.g. removed, let the usual path report it
+			return null;
+		} catch (IOException e) {
+			Log.i(TAG, "server unreachable, using offline copy", e);
+			return offlineMirror.open(qualifiedPath);
+		}
+		c.attributeCache().putStat(path, stat);
+		var version = new FileVersion(qualifiedPath, stat.getSize(),
+			stat.getModifyTime().toMillis());
+		if (offlineMirror.isCurrent(version)) {
+			return offlineMirror.open(qualifiedPath);
+		}
+		syncPinned(p);
+		return null;
+	}
+
+	// mirror pinned documents, and drop unpinned ones, in the background
+	private void syncPinned(Profile p) {
+		var pins = p.pinnedPaths;
+		if (pins.isEmpty() && p.offlineMirror.isEmpty()) {
+			return;
+		}
+		if (!p.offlineSyncing.compareAndSet(false, true)) {
+			return;
+		}
+		p.lastOfflineSync = SystemClock.elapsedRealtime();
+		var c = p.conn;
+		var ctx = getContext();
+		// as foreground service, not to be killed mid-way, but only once there
+		// is something to download, as this often runs from the background
+		var serviceConnection = new ServiceConnection() {
+			@Override
+			public void onServiceConnected(ComponentName name, IBinder service) {}
+			@Override
+			public void onServiceDisconnected(ComponentName name) {}
+		};
+		var bound = new AtomicBoolean();
+		Runnable keepAlive = () -> {
+			if (bound.compareAndSet(false, true)) {
+				ctx.bindService(new Intent(ctx, SftpIOService.class),
+					serviceConnection, Context.BIND_AUTO_CREATE);
+			}
+		};
+		CompletableFuture.runAsync(() -> {
+			var kept = new HashSet<String>();
+			var complete = true;
+			try (var sftp = c.getLongLivedClient(null)) {
+				var root = c.params().getRootDocumentId();
+				for (var pin : pins) {
+					complete &= syncPinned(p, sftp,
+						documentIdFromPath(root, pin), null, kept, keepAlive);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "cannot sync offline documents", e);
+				complete = false;
+			}
+			// partial walks cannot tell what is unpinned or removed
+			if (complete) {
+				p.offlineMirror.retainOnly(kept);
+			}
+		}, backgroundExecutor).whenComplete((v, e) -> {
+			if (bound.get()) {
+				ctx.unbindService(serviceConnection);
+			}
+			p.offlineSyncing.set(false);
+			// reconfigured mid-way
+			var now = current(p);
+			if (now != null) {
+				syncPinned(now);
+			}
+		});
+	}
+
+	// returns false if anything is left out
+	private boolean syncPinned(Profile p, SftpClient sftp, String documentId,
+			SftpClient.Attributes stat, Set<String> kept, Runnable keepAlive) {
+		var path = pathFromDocumentId(documentId);
+		try {
+			if (stat == null) {
+				stat = sftp.stat(path);
+			}
+			if (stat.isDirectory()) {
+				var complete = true;
+				for (var entry : sftp.readDir(path)) {
+					var name = entry.getFilename();
+					if (".".equals(name) || "..".equals(name)) {
+						continue;
+					}
+					var attrs = entry.getAttributes();
+					if (attrs.isSymbolicLink()) {
+						try {
+							attrs = sftp.stat(path + "/" + name);
+						} catch (SftpException e) {
+							// broken
+							continue;
+						}
+						// may loop
+						if (attrs.isDirectory()) {
+							continue;
+						}
+					}
+					complete &= syncPinned(p, sftp, documentId + "/" + name,
+						attrs, kept, keepAlive);
+				}
+				return complete;
+			}
+			if (!stat.isRegularFile()) {
+				return true;
+			}
+
+			var qualifiedPath = qualifiedPathFromDocumentId(documentId);
+			kept.add(SftpOfflineMirror.name(qualifiedPath));
+			var version = new FileVersion(qualifiedPath, stat.getSize(),
+				stat.getModifyTime().toMillis());
+			if (!p.offlineMirror.isCurrent(version)) {
+				Log.v(TAG, "syncing " + path);
+				keepAlive.run();
+				p.offlineMirror.download(sftp, path, version);
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "cannot sync " + path, e);
+			return false;
+		}
+	}
+
 	@Override
 	public String createDocument(String parentDocumentId, String mimeType,
 			String displayName) throws FileNotFoundException {
-		var parent = pathFromDocumentId(parentDocumentId);
+		var documentId = parentDocumentId + "/" + displayName;
+		var path = pathFromDocumentId(documentId);
+		var p = profileOf(parentDocumentId);
+		var c = p.conn;
 		if (Document.MIME_TYPE_DIR.equals(mimeType)) {
 			ioToUnchecked(() -> {
-				try (var sftp = getClient()) {
-					sftp.mkdir(parent + "/" + displayName);
+				try (var sftp = getClient(p)) {
+					sftp.mkdir(path);
 				}
 				return null;
 			});
 		} else {
 			ioToUnchecked(() -> {
-				try (var sftp = getClient()) {
-					sftp.close(
-						sftp.open(parent + "/" + displayName,
-							SftpClient.OpenMode.Create,
-							SftpClient.OpenMode.Exclusive));
+				// may be parked for the open that follows
+				var sftp = getLongLivedClient(p, null);
+				var parked = false;
+				try {
+					// readable too, to serve any mode openDocument asks for
+					var file = sftp.open(path, SftpClient.OpenMode.Create,
+						SftpClient.OpenMode.Exclusive, SftpClient.OpenMode.Read,
+						SftpClient.OpenMode.Write);
+					parked = c.preopenedFiles().park(path, sftp, file);
+					if (!parked) {
+						sftp.close(file);
+					}
+				} finally {
+					if (!parked) {
+						sftp.close();
+					}
 				}
 				return null;
 			});
 		}
+		invalidate(c, documentId);
 		cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
 				AUTHORITY, parentDocumentId), null, 0);
-		return parent + "/" + displayName;
+		return documentId;
 	}
 
 	@Override
 	public void deleteDocument(String documentId)
 			throws FileNotFoundException {
 		var path = pathFromDocumentId(documentId);
+		var p = profileOf(documentId);
+		var c = p.conn;
+		var signal = new CancellationSignal();
+		p.deletions.add(signal);
+		var childrenUri = DocumentsContract.buildChildDocumentsUri(
+			AUTHORITY, documentId);
+		var lastNotified = new AtomicLong(SystemClock.elapsedRealtime());
+		try {
+			ioToUnchecked(() -> {
+				try (var sftp = getLongLivedClient(p, signal)) {
+					if (!sftp.lstat(path).isDirectory()) {
+						sftp.remove(path);
+						return null;
+					}
+					// whoever is looking into it sees it emptying
+					new SftpRecursiveDelete(sftp, signal, removed -> {
+						var now = SystemClock.elapsedRealtime();
+						if (now - lastNotified.get() >=
+								LISTING_NOTIFY_INTERVAL.toMillis()) {
+							lastNotified.set(now);
+							c.directoryCache().invalidate(documentId);
+							cr.notifyChange(childrenUri, null, 0);
+						}
+					}).delete(path);
+				}
+				return null;
+			});
+		} finally {
+			p.deletions.remove(signal);
+			// also covers partial deletion
+			invalidate(c, documentId);
+			cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
+					AUTHORITY, toParentDocumentId(documentId)), null, 0);
+		}
+	}
+
+	// never replaces an existing target, unlike posix-rename
+	private void rename(SftpClient sftp, String from, String to)
+			throws IOException {
+		try {
+			sftp.rename(from, to);
+		} catch (SftpException e) {
+			// e.g. OpenSSH on filesystems it cannot tell why link(2) fails
+			var posixRename = sftp.getExtension(
+				OpenSSHPosixRenameExtension.class);
+			if (e.getStatus() != SftpConstants.SSH_FX_FAILURE ||
+					!posixRename.isSupported() || exists(sftp, to)) {
+				throw e;
+			}
+			posixRename.posixRename(from, to);
+		}
+	}
+
+	private static boolean exists(SftpClient sftp, String path)
+			throws IOException {
+		try {
+			sftp.lstat(path);
+			return true;
+		} catch (SftpException e) {
+			if (e.getStatus() == SftpConstants.SSH_FX_NO_SUCH_FILE) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	// e.g. "name (1).ext", as FileUtils.buildUniqueFile() for local files
+	private static String uniqueName(SftpClient sftp, String parentPath,
+			String name, boolean isDirectory) throws IOException {
+		var dot = isDirectory ? -1 : name.lastIndexOf('.');
+		var base = dot > 0 ? name.substring(0, dot) : name;
+		var extension = dot > 0 ? name.substring(dot) : "";
+		var candidate = name;
+		for (var n = 1; exists(sftp, parentPath + "/" + candidate); n++) {
+			if (n > MAX_UNIQUE_NAME_ATTEMPTS) {
+				throw new SftpException(SftpConstants.SSH_FX_FILE_ALREADY_EXISTS,
+					"Failed to find a unique name for " + name);
+			}
+			candidate = base + " (" + n + ")" + extension;
+		}
+		return candidate;
+	}
+
+	// symlinks are followed, except ones to directories, which may loop, and
+	// are recreated as symlinks instead
+	private void copy(SftpClient sftp, String from, String to,
+			SftpClient.Attributes stat) throws IOException {
+		if (stat.isDirectory()) {
+			sftp.mkdir(to);
+			for (var entry : sftp.readDir(from)) {
+				var name = entry.getFilename();
+				if (".".equals(name) || "..".equals(name)) {
+					continue;
+				}
+				var child = from + "/" + name;
+				var attrs = entry.getAttributes();
+				if (attrs.isSymbolicLink()) {
+					attrs = sftp.stat(child);
+					if (attrs.isDirectory()) {
+						sftp.symLink(to + "/" + name, sftp.readLink(child));
+						continue;
+					}
+				}
+				copy(sftp, child, to + "/" + name, attrs);
+			}
+			return;
+		}
+
+		var copyFile = sftp.getExtension(CopyFileExtension.class);
+		if (copyFile.isSupported()) {
+			copyFile.copyFile(from, to, false);
+			return;
+		}
+		var copyData = sftp.getExtension(CopyDataExtension.class);
+		if (!copyData.isSupported()) {
+			throw new SftpException(SftpConstants.SSH_FX_OP_UNSUPPORTED,
+				"server cannot copy");
+		}
+		try (var src = sftp.open(from, SftpClient.OpenMode.Read);
+				var dst = sftp.open(to, SftpClient.OpenMode.Write,
+					SftpClient.OpenMode.Create,
+					SftpClient.OpenMode.Exclusive)) {
+			// length 0 is till EOF
+			copyData.copyData(src, 0, 0, dst, 0);
+		}
+	}
+
+	@Override
+	public String renameDocument(String documentId, String displayName)
+			throws FileNotFoundException {
+		var parentDocumentId = toParentDocumentId(documentId);
+		var targetDocumentId = parentDocumentId + "/" + displayName;
+		var p = profileOf(documentId);
 		ioToUnchecked(() -> {
-			try (var sftp = getClient()) {
-				sftp.remove(path);
+			try (var sftp = getClient(p)) {
+				rename(sftp, pathFromDocumentId(documentId),
+					pathFromDocumentId(targetDocumentId));
 			}
 			return null;
 		});
+		invalidate(p.conn, documentId);
+		invalidate(p.conn, targetDocumentId);
 		cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
-				AUTHORITY, toParentDocumentId(documentId)), null, 0);
+				AUTHORITY, parentDocumentId), null, 0);
+		return targetDocumentId;
 	}
 
-	private FsCreds resolveFsCreds() throws IOException {
+	@Override
+	public String moveDocument(String sourceDocumentId,
+			String sourceParentDocumentId, String targetParentDocumentId)
+			throws FileNotFoundException {
+		var targetDocumentId = targetParentDocumentId + "/" +
+			basename(sourceDocumentId);
+		var p = sameProfileOf(sourceDocumentId, targetParentDocumentId);
+		ioToUnchecked(() -> {
+			try (var sftp = getClient(p)) {
+				rename(sftp, pathFromDocumentId(sourceDocumentId),
+					pathFromDocumentId(targetDocumentId));
+			}
+			return null;
+		});
+		invalidate(p.conn, sourceDocumentId);
+		invalidate(p.conn, targetDocumentId);
+		cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
+				AUTHORITY, sourceParentDocumentId), null, 0);
+		cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
+				AUTHORITY, targetParentDocumentId), null, 0);
+		return targetDocumentId;
+	}
+
+	@Override
+	public String copyDocument(String sourceDocumentId,
+			String targetParentDocumentId) throws FileNotFoundException {
+		// would never finish, copying what it copies
+		if (sourceDocumentId.equals(targetParentDocumentId) ||
+				isChildDocument(sourceDocumentId, targetParentDocumentId)) {
+			throw new IllegalArgumentException(
+				"Cannot copy a directory into itself");
+		}
+		var p = sameProfileOf(sourceDocumentId, targetParentDocumentId);
+		var targetDocumentId = ioToUnchecked(() -> {
+			try (var sftp = getClient(p)) {
+				var from = pathFromDocumentId(sourceDocumentId);
+				var stat = sftp.stat(from);
+				// e.g. copying into the same directory
+				var target = targetParentDocumentId + "/" + uniqueName(sftp,
+					pathFromDocumentId(targetParentDocumentId),
+					basename(sourceDocumentId), stat.isDirectory());
+				copy(sftp, from, pathFromDocumentId(target), stat);
+				return target;
+			}
+		});
+		invalidate(p.conn, targetDocumentId);
+		cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
+				AUTHORITY, targetParentDocumentId), null, 0);
+		return targetDocumentId;
+	}
+
+	// server-side operations cannot cross servers, DocumentsUI then falls
+	// back to streaming through the device
+	private Profile sameProfileOf(String documentId, String otherDocumentId)
+			throws FileNotFoundException {
+		var p = profileOf(documentId);
+		if (p != profileOf(otherDocumentId)) {
+			throw new UnsupportedOperationException(
+				"Cannot operate across profiles");
+		}
+		return p;
+	}
+
+	// drop cached knowledge about a document that is modified, including
+	// its parent and anything below it
+	private void invalidate(SftpConnection c, String documentId) {
+		var parentDocumentId = toParentDocumentId(documentId);
+		c.attributeCache().invalidateTree(pathFromDocumentId(documentId));
+		c.attributeCache().invalidate(pathFromDocumentId(parentDocumentId));
+		c.directoryCache().invalidateTree(documentId);
+		c.directoryCache().invalidate(parentDocumentId);
+		c.searchCache().invalidate();
+		if (treeIndexEnabled) {
+			treeIndex.remove(getIndexRoot(c), documentId);
+		}
+	}
+
+	// qualified, so that roots of other servers or paths do not mix
+	private String getIndexRoot(SftpConnection c) {
+		return new Uri.Builder().scheme("sftp")
+			.encodedAuthority(c.params().getRootDocumentId().getEncodedAuthority())
+			.path(c.params().remotePath()).build().toString();
+	}
+
+	private void index(SftpConnection c, String documentId,
+			SftpDirectoryCache.Listing listing) {
+		if (treeIndexEnabled && listing.complete()) {
+			treeIndex.replaceChildren(getIndexRoot(c), documentId,
+				listing.entries(), System.currentTimeMillis());
+		}
+	}
+
+	// walks the tree slowly to fill the index, skipping directories listed
+	// recently, e.g. by browsing
+	private void crawlInBackground(Profile p) {
+		if (!treeIndexEnabled || !p.crawling.compareAndSet(false, true)) {
+			return;
+		}
+		var c = p.conn;
+		var root = getIndexRoot(c);
+		var rootDocumentId = c.params().getRootDocumentId().toString();
+		new Thread(() -> {
+			var start = System.currentTimeMillis();
+			if (start - treeIndex.getCrawledTime(root) <
+					CRAWL_INTERVAL.toMillis()) {
+				p.crawling.set(false);
+				return;
+			}
+			var pending = new ArrayDeque<String>();
+			pending.add(rootDocumentId);
+			var scratch = new MatrixCursor(new String[0]);
+			var complete = true;
+			try {
+				while (!pending.isEmpty()) {
+					if (p.closed || !treeIndexEnabled) {
+						complete = false;
+						break;
+					}
+					var documentId = pending.poll();
+					if (treeIndex.getListedTime(root, documentId) <
+							start - CRAWL_INTERVAL.toMillis()) {
+						try (var reader = new DirectoryReader(c, documentId)) {
+							reader.read(scratch, 0);
+							treeIndex.replaceChildren(root, documentId,
+								reader.entries(), System.currentTimeMillis());
+						} catch (SftpException e) {
+							if (e.getStatus() != SftpConstants.SSH_FX_PERMISSION_DENIED) {
+								Log.w(TAG, "cannot crawl " + documentId, e);
+								complete = false;
+								continue;
+							}
+							// nothing we can find in there, as if empty, so
+							// that the crawl still completes
+							treeIndex.replaceChildren(root, documentId, Map.of(),
+								System.currentTimeMillis());
+						} catch (IOException|UncheckedIOException e) {
+							Log.w(TAG, "cannot crawl " + documentId, e);
+							complete = false;
+							continue;
+						}
+						Thread.sleep(CRAWL_DELAY.toMillis());
+					}
+					pending.addAll(treeIndex.getDirectories(root, documentId));
+				}
+			} catch (InterruptedException e) {
+				complete = false;
+			}
+			if (complete) {
+				Log.i(TAG, "crawl completed");
+				treeIndex.setCrawledTime(root, start);
+			}
+			p.crawling.set(false);
+			// reconfigured mid-way
+			var now = current(p);
+			if (now != null) {
+				crawlInBackground(now);
+			}
+		}, "crawler").start();
+	}
+
+	private FsCreds resolveFsCreds(Profile p) throws IOException {
 		// openDocument, ParcelFileDescriptor checks size, which is not
 		// friendly to /proc virtual files
-		try (var sftp = getClient()) {
+		try (var sftp = getClient(p)) {
 			try (var stream = sftp.read("/proc/self/status")) {
 				var reader = new BufferedReader(new InputStreamReader(stream));
 				var line = reader.readLine();
@@ -367,10 +1076,13 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		return null;
 	}
 
-	private void hoistFsCreds() {
-		fsCreds = fsCreds != null ? fsCreds : CompletableFuture.supplyAsync(() -> {
+	private void hoistFsCreds(Profile p) {
+		if (p.fsCreds != null) {
+			return;
+		}
+		p.fsCreds = CompletableFuture.supplyAsync(() -> {
 			try {
-				return Optional.of(resolveFsCreds());
+				return Optional.ofNullable(resolveFsCreds(p));
 			} catch (IOException e) {
 				toast("Cannot resolve identity: " + e.getMessage());
 				Log.e(TAG, "cannot resolve identify", e);
@@ -379,30 +1091,109 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		});
 	}
 
-	private int getModeBits(SftpClient.Attributes stat) {
+	private int getModeBits(Profile p, SftpClient.Attributes stat) {
 		return getModeBits(
 			stat.getPermissions(), stat.getUserId(), stat.getGroupId(),
-			fsCreds.join().orElse(null));
+			p.fsCreds.join().orElse(null));
 	}
 
-	private boolean hasModeBit(SftpClient.Attributes stat, int bit) {
-		return (getModeBits(stat) & bit) == bit;
+	private boolean hasModeBit(Profile p, SftpClient.Attributes stat,
+			int bit) {
+		return (getModeBits(p, stat) & bit) == bit;
 	}
 
-	private Object[] getDocumentRow(SftpClient sftp, Cursor cursor,
-			String documentId, SftpClient.Attributes lstat,
-			SftpClient.Attributes parentStat) {
-		var name = basename(documentId);
-		var path = pathFromDocumentId(documentId);
-		var tmp = lstat;
-		if (lstat.isSymbolicLink()) {
+	// symlinks are resolved with pipelined requests, costing about a round
+	// trip for all of them instead of one or two each
+	private List<SftpFileAttributes> resolve(SftpClient sftp, Cursor cursor,
+			List<String> documentIds, List<SftpClient.Attributes> lstats)
+			throws IOException {
+		var pipeline = new SftpPipeline(sftp);
+		// every request not received yet, to be discarded on failure, so that
+		// the client goes back to the pool clean
+		var pending = new LinkedHashSet<Integer>();
+		try {
+			return resolve(pipeline, pending, cursor, documentIds, lstats);
+		} finally {
+			for (var id : pending) {
+				try {
+					pipeline.discard(id);
+				} catch (IOException e) {
+					Log.w(TAG, "failed to discard response", e);
+				}
+			}
+		}
+	}
+
+	private List<SftpFileAttributes> resolve(SftpPipeline pipeline,
+			Set<Integer> pending, Cursor cursor, List<String> documentIds,
+			List<SftpClient.Attributes> lstats) throws IOException {
+		var count = lstats.size();
+		var stats = lstats.toArray(new SftpClient.Attributes[count]);
+		var ids = new int[count];
+		for (var i = 0; i < count; i++) {
+			if (lstats.get(i).isSymbolicLink()) {
+				ids[i] = pipeline.sendStat(pathFromDocumentId(documentIds.get(i)));
+				pending.add(ids[i]);
+			}
+		}
+		for (var i = 0; i < count; i++) {
+			if (!lstats.get(i).isSymbolicLink()) {
+				continue;
+			}
+			var id = ids[i];
+			var name = basename(documentIds.get(i));
+			pending.remove(id);
 			try {
-				tmp = ioWithCursor(cursor,
-					() -> sftp.stat(path), DocumentsContract.EXTRA_INFO,
-					"Cannot stat " + name + ": ").orElse(lstat);
+				stats[i] = ioWithCursor(cursor,
+					() -> pipeline.receiveAttributes(id),
+					DocumentsContract.EXTRA_INFO,
+					"Cannot stat " + name + ": ").orElse(stats[i]);
 			} catch (FileNotFoundException e) {}
 		}
-		final var stat = tmp;
+
+		// still a symlink, i.e. broken
+		for (var i = 0; i < count; i++) {
+			if (stats[i].isSymbolicLink()) {
+				ids[i] = pipeline.sendReadLink(
+					pathFromDocumentId(documentIds.get(i)));
+				pending.add(ids[i]);
+			}
+		}
+		var results = new ArrayList<SftpFileAttributes>(count);
+		for (var i = 0; i < count; i++) {
+			var lstat = lstats.get(i);
+			if (!lstat.isSymbolicLink()) {
+				results.add(new SftpFileAttributes(lstat));
+				continue;
+			}
+			String target = null;
+			if (stats[i].isSymbolicLink()) {
+				var id = ids[i];
+				pending.remove(id);
+				target = mustIOWithCursor(cursor,
+					() -> pipeline.receiveName(id),
+					DocumentsContract.EXTRA_INFO,
+					"Cannot readlink " + basename(documentIds.get(i)) + ": ")
+					.orElse(null);
+			}
+			results.add(new SftpFileAttributes(lstat, stats[i], target));
+		}
+		return results;
+	}
+
+	private SftpFileAttributes resolve(SftpClient sftp, Cursor cursor,
+			String documentId, SftpClient.Attributes lstat) throws IOException {
+		return resolve(sftp, cursor, List.of(documentId), List.of(lstat))
+			.get(0);
+	}
+
+	// parentStat may be null if not known, e.g. in search results
+	private Object[] getDocumentRow(Profile p, Cursor cursor,
+			String documentId, SftpFileAttributes attrs,
+			SftpClient.Attributes parentStat) {
+		var name = basename(documentId);
+		var lstat = attrs.lstat();
+		var stat = attrs.stat();
 		var type = getType(stat.getPermissions(), name);
 
 		// TODO handle broken symlink
@@ -415,17 +1206,18 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		case Document.COLUMN_FLAGS -> {
 			var flags = switch (stat.getPermissions() & S_IFMT) {
 			case S_IFLNK -> Document.FLAG_PARTIAL;
-			case S_IFDIR -> hasModeBit(stat, S_IW | S_IX) ?
+			case S_IFDIR -> hasModeBit(p, stat, S_IW | S_IX) ?
 				Document.FLAG_DIR_SUPPORTS_CREATE : 0;
 			case S_IFREG -> {
-				var rflags = hasModeBit(stat, S_IW) ?
+				var rflags = hasModeBit(p, stat, S_IW) ?
 					Document.FLAG_SUPPORTS_WRITE : 0;
-				if (hasModeBit(stat, S_IR) && cm.getRestrictBackgroundStatus()
+				if (hasModeBit(p, stat, S_IR) && cm.getRestrictBackgroundStatus()
 						!= ConnectivityManager.RESTRICT_BACKGROUND_STATUS_ENABLED) {
 					if (typeSupportsMetadata(type)) {
 						rflags |= Document.FLAG_SUPPORTS_METADATA;
 					}
-					if (typeSupportsThumbnail(type)) {
+					if (typeSupportsThumbnail(type) || Boolean.TRUE.equals(
+							hasXdgThumbnails(toParentDocumentId(documentId)))) {
 						rflags |= Document.FLAG_SUPPORTS_THUMBNAIL;
 					}
 				}
@@ -433,8 +1225,8 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 			}
 			default -> 0;
 			};
-			if (!lstat.isDirectory() && hasModeBit(parentStat, S_IW)) {
-				var blockedBySticky = fsCreds.join().map(creds -> {
+			if (parentStat != null && hasModeBit(p, parentStat, S_IW)) {
+				var blockedBySticky = p.fsCreds.join().map(creds -> {
 					if ((parentStat.getPermissions() & OsConstants.S_ISVTX)
 							!= OsConstants.S_ISVTX) {
 						return false;
@@ -444,9 +1236,15 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 						creds.uid() != lstat.getUserId();
 				}).orElse(false);
 				if (!blockedBySticky) {
-					flags |= Document.FLAG_SUPPORTS_DELETE;
+					flags |= Document.FLAG_SUPPORTS_RENAME |
+						Document.FLAG_SUPPORTS_MOVE |
+						Document.FLAG_SUPPORTS_DELETE;
 				}
 			}
+			// data never leaves the server
+			if (p.conn.supportsServerCopy() && hasModeBit(p, stat, S_IR)) {
+				flags |= Document.FLAG_SUPPORTS_COPY;
+			}
 			yield flags;
 		}
 		case Document.COLUMN_ICON -> {
@@ -458,15 +1256,8 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 			}
 			yield null;
 		}
-		case Document.COLUMN_SUMMARY -> {
-			if (stat.isSymbolicLink()) {
-				yield mustIOWithCursor(cursor, () -> sftp.readLink(path),
-					DocumentsContract.EXTRA_INFO,
-					"Cannot readlink " + name + ": ")
-					.map(s -> "Symlink to " + s).orElse(null);
-			}
-			yield null;
-		}
+		case Document.COLUMN_SUMMARY -> attrs.linkTarget() != null ?
+			"Symlink to " + attrs.linkTarget() : null;
 		default -> null;
 		}).toArray();
 	}
@@ -476,70 +1267,630 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 			throws FileNotFoundException, AbortWithCursorException;
 	}
 
-	protected Cursor performQuery(Cursor c, SftpQueryOperation o)
+	protected Cursor performQuery(Profile p, Cursor c, SftpQueryOperation o)
 			throws FileNotFoundException {
 		return performQuery(c, () -> {
 			try (var sftp = new UncheckedAutoCloseable<SftpClient>(
-					ioWithCursor(c, this::getClient)
+					ioWithCursor(c, () -> getClient(p))
 					.orElseThrow(this::abortQuery))) {
 				o.execute(sftp.c());
 			}
 		});
 	}
 
+	/*
+	 * Reads a directory batch by batch, resolving entries as they come.
+	 * Owns the client it borrows, until closed.
+	 */
+	private class DirectoryReader implements AutoCloseable {
+		private final SftpConnection c;
+		private final String documentId;
+		private final String path;
+		private final SftpClient sftp;
+		private final SftpClient.CloseableHandle handle;
+		// one per read(), never modified afterwards
+		private final List<Map<String, SftpFileAttributes>> pages =
+			new ArrayList<>();
+		private SftpClient.Attributes attributes;
+		private boolean eof;
+
+		DirectoryReader(SftpConnection c, String documentId)
+				throws IOException {
+			this.c = c;
+			this.documentId = documentId;
+			path = pathFromDocumentId(documentId);
+			sftp = c.getClient(null);
+			try {
+				handle = sftp.openDir(path);
+			} catch (IOException e) {
+				sftp.close();
+				throw e;
+			}
+		}
+
+		// reads until at least limit more entries, or all if limit is 0,
+		// returns false if the end is reached
+		boolean read(Cursor cursor, int limit) throws IOException {
+			var attributeCache = c.attributeCache();
+			var page = new LinkedHashMap<String, SftpFileAttributes>();
+			var read = 0;
+			while (!eof && (limit <= 0 || read < limit)) {
+				var batch = sftp.readDir(handle);
+				if (batch == null) {
+					eof = true;
+					break;
+				}
+				var names = new ArrayList<String>(batch.size());
+				var documentIds = new ArrayList<String>(batch.size());
+				var lstats = new ArrayList<SftpClient.Attributes>(batch.size());
+				for (var entry : batch) {
+					var name = entry.getFilename();
+					// protocol doesn't really say anything about . or ..
+					if (".".equals(name)) {
+						attributes = entry.getAttributes();
+						attributeCache.putStat(path, attributes);
+						continue;
+					} else if ("..".equals(name)) {
+						continue;
+					}
+					names.add(name);
+					documentIds.add(documentId + '/' + name);
+					lstats.add(entry.getAttributes());
+				}
+
+				var resolved = resolve(sftp, cursor, documentIds, lstats);
+				for (var i = 0; i < names.size(); i++) {
+					var attrs = resolved.get(i);
+					page.put(names.get(i), attrs);
+					attributeCache.put(pathFromDocumentId(documentIds.get(i)),
+						attrs);
+				}
+				read += names.size();
+			}
+			if (!page.isEmpty()) {
+				pages.add(page);
+			}
+			return !eof;
+		}
+
+		SftpClient.Attributes attributes() throws IOException {
+			if (attributes == null) {
+				Log.i(TAG, "server does not send .");
+				attributes = sftp.stat(path);
+				c.attributeCache().putStat(path, attributes);
+			}
+			return attributes;
+		}
+
+		// a snapshot of what is read so far, cheap to take repeatedly
+		Map<String, SftpFileAttributes> entries() {
+			return new SftpDirectoryCache.Pages(pages);
+		}
+
+		@Override
+		public void close() {
+			try {
+				handle.close();
+			} catch (IOException e) {
+				Log.w(TAG, "cannot close directory", e);
+			}
+			try {
+				sftp.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private void addRows(MatrixCursor cursor, Profile p,
+			String parentDocumentId, SftpDirectoryCache.Listing listing) {
+		if (listing.complete()) {
+			setHasXdgThumbnails(parentDocumentId,
+				listing.entries().containsKey(XDG_SHARED_THUMBNAIL_DIR));
+		}
+		listing.entries().forEach((name, attrs) -> cursor.addRow(
+			getDocumentRow(p, cursor, parentDocumentId + '/' + name, attrs,
+				listing.attributes())));
+	}
+
+	private void refreshInBackground(SftpConnection c, String documentId,
+			Uri notificationUri) {
+		var cache = c.directoryCache();
+		if (!cache.beginRefresh(documentId)) {
+			return;
+		}
+		CompletableFuture.runAsync(() -> {
+			// on failure, drop the listing so that error is reported
+			// by the query that follows the notification
+			var scratch = new MatrixCursor(new String[0]);
+			try (var reader = new DirectoryReader(c, documentId)) {
+				reader.read(scratch, 0);
+				index(c, documentId, cache.publish(documentId,
+					reader.attributes(), reader.entries(), true));
+			} catch (IOException|UncheckedIOException e) {
+				Log.w(TAG, "cannot refresh listing", e);
+				cache.invalidate(documentId);
+			} finally {
+				cache.endRefresh(documentId);
+			}
+			cr.notifyChange(notificationUri, null, 0);
+		}, backgroundExecutor);
+	}
+
+	// takes over the reader, publishing what is read so far at most once
+	// per LISTING_NOTIFY_INTERVAL
+	private void continueInBackground(SftpConnection c, DirectoryReader reader,
+			String documentId, Uri notificationUri) {
+		var cache = c.directoryCache();
+		var pageSize = c.tuning().listingPageSize();
+		CompletableFuture.runAsync(() -> {
+			var scratch = new MatrixCursor(new String[0]);
+			var lastNotified = SystemClock.elapsedRealtime();
+			try (reader) {
+				while (reader.read(scratch, pageSize)) {
+					var now = SystemClock.elapsedRealtime();
+					if (now - lastNotified >= LISTING_NOTIFY_INTERVAL.toMillis()) {
+						cache.publish(documentId, reader.attributes(),
+							reader.entries(), false);
+						cr.notifyChange(notificationUri, null, 0);
+						lastNotified = now;
+					}
+				}
+				index(c, documentId, cache.publish(documentId,
+					reader.attributes(), reader.entries(), true));
+			} catch (IOException|UncheckedIOException e) {
+				Log.w(TAG, "cannot finish listing", e);
+				cache.invalidate(documentId);
+			} finally {
+				cache.endRefresh(documentId);
+			}
+			cr.notifyChange(notificationUri, null, 0);
+		}, backgroundExecutor);
+	}
+
+	private static void setLoading(Cursor cursor) {
+		var extras = new Bundle();
+		extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+		cursor.setExtras(extras);
+	}
+
 	@Override
 	public Cursor queryChildDocuments(
 			String parentDocumentId, String[] projection, String sortOrder)
 			throws FileNotFoundException {
 		var cols = projection != null ? projection : DEFAULT_DOC_PROJECTION;
 		var result = new MatrixCursor(cols);
-		result.setNotificationUri(cr, DocumentsContract.buildChildDocumentsUri(
-				AUTHORITY, parentDocumentId));
-
-		hoistFsCreds();
-		return performQuery(result, sftp -> {
-			var filename = pathFromDocumentId(parentDocumentId);
-			var entries = ioWithCursor(result,
-				() -> sftp.readEntries(filename))
+		var notificationUri = DocumentsContract.buildChildDocumentsUri(
+				AUTHORITY, parentDocumentId);
+		result.setNotificationUri(cr, notificationUri);
+
+		var p = profileOf(parentDocumentId);
+		hoistFsCreds(p);
+		var c = p.conn;
+		var cache = c.directoryCache();
+		var cached = cache.get(parentDocumentId);
+		if (cached != null) {
+			if (!cached.complete()) {
+				// still being read in the background
+				setLoading(result);
+			} else if (!cache.isFresh(cached)) {
+				setLoading(result);
+				refreshInBackground(c, parentDocumentId, notificationUri);
+			}
+			addRows(result, p, parentDocumentId, cached);
+			return result;
+		}
+
+		// huge directories are shown page by page as they are read
+		var pageSize = c.tuning().listingPageSize();
+		return performQuery(result, () -> {
+			var reader = ioWithCursor(result,
+				() -> new DirectoryReader(c, parentDocumentId))
+				.orElseThrow(this::abortQuery);
+			var handedOver = false;
+			try {
+				var more = ioWithCursor(result,
+					() -> reader.read(result, pageSize))
+					.orElseThrow(this::abortQuery);
+				var attributes = ioWithCursor(result, reader::attributes)
 					.orElseThrow(this::abortQuery);
 
-			// protocol doesn't really say anything about . or ..
-			var parentStat = entries.stream()
-				.filter(entry -> ".".equals(entry.getFilename()))
-				.findFirst().map(entry -> entry.getAttributes())
-				.orElseGet(() -> {
-					Log.i(TAG, "server does not send .");
-
-					return mustIOToUnchecked(() -> sftp.stat(filename));
-				});
-
-			entries.stream()
-				.filter(entry -> !List.of(".", "..").contains(entry.getFilename()))
-				.map(entry -> {
-					var documentId = parentDocumentId + '/' + entry.getFilename();
-					return getDocumentRow(sftp, result, documentId,
-							entry.getAttributes(), parentStat);
-				}).forEach(row -> result.addRow(row));
+				SftpDirectoryCache.Listing listing;
+				if (more && cache.beginRefresh(parentDocumentId)) {
+					listing = cache.publish(parentDocumentId, attributes,
+						reader.entries(), false);
+					continueInBackground(c, reader, parentDocumentId,
+						notificationUri);
+					handedOver = true;
+					setLoading(result);
+				} else {
+					if (more) {
+						ioWithCursor(result, () -> reader.read(result, 0))
+							.orElseThrow(this::abortQuery);
+					}
+					listing = cache.put(parentDocumentId, attributes,
+						reader.entries());
+					var snapshot = listing;
+					CompletableFuture.runAsync(
+						() -> index(c, parentDocumentId, snapshot),
+						backgroundExecutor);
+				}
+				addRows(result, p, parentDocumentId, listing);
+			} finally {
+				if (!handedOver) {
+					reader.close();
+				}
+			}
 		});
 	}
 
+	private void addRows(MatrixCursor cursor, Profile p,
+			List<SftpSearchCache.Match> matches) {
+		for (var m : matches) {
+			var parentStat = p.conn.attributeCache().getStat(
+				pathFromDocumentId(toParentDocumentId(m.documentId())));
+			cursor.addRow(getDocumentRow(p, cursor, m.documentId(),
+				m.attributes(), parentStat));
+		}
+	}
+
+	private List<SftpSearchCache.Match> toMatches(SftpConnection c,
+			SftpClient sftp, List<String> documentIds,
+			List<SftpClient.Attributes> lstats) throws IOException {
+		// errors of broken symlinks are of no interest here
+		var scratch = new MatrixCursor(new String[0]);
+		var resolved = resolve(sftp, scratch, documentIds, lstats);
+		var matches = new ArrayList<SftpSearchCache.Match>(resolved.size());
+		for (var i = 0; i < resolved.size(); i++) {
+			var documentId = documentIds.get(i);
+			c.attributeCache().put(pathFromDocumentId(documentId),
+				resolved.get(i));
+			matches.add(new SftpSearchCache.Match(documentId, resolved.get(i)));
+		}
+		return matches;
+	}
+
+	// documents gone since found are left out
+	private List<SftpSearchCache.Match> lstat(SftpConnection c,
+			SftpClient sftp, List<String> documentIds) throws IOException {
+		var pipeline = new SftpPipeline(sftp);
+		var ids = new int[documentIds.size()];
+		for (var i = 0; i < ids.length; i++) {
+			ids[i] = pipeline.sendLstat(pathFromDocumentId(documentIds.get(i)));
+		}
+		var found = new ArrayList<String>(ids.length);
+		var lstats = new ArrayList<SftpClient.Attributes>(ids.length);
+		for (var i = 0; i < ids.length; i++) {
+			try {
+				lstats.add(pipeline.receiveAttributes(ids[i]));
+				found.add(documentIds.get(i));
+			} catch (SftpException e) {}
+		}
+		return toMatches(c, sftp, found, lstats);
+	}
+
+	private static String shellQuote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	private static String globEscape(String s) {
+		return s.replaceAll("[\\\\*?\\[]", "\\\\$0");
+	}
+
+	// null at end of stream
+	private static String readNulTerminated(InputStream in)
+			throws IOException {
+		var buf = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) > 0) {
+			buf.write(b);
+		}
+		return b == -1 ? null :
+			new String(buf.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	// returns why results are partial, if so; if find cannot be used, e.g.
+	// without shell access, marks it so on the search cache instead
+	private String searchViaFind(SftpConnection c,
+			SftpSearchCache.Search search, String query, Runnable progress)
+			throws IOException {
+		var cache = c.searchCache();
+		if (cache.isFindUnavailable()) {
+			return null;
+		}
+		var root = c.params().remotePath();
+		var prefix = root.endsWith("/") ? root : root + "/";
+		var rootDocumentId = c.params().getRootDocumentId();
+		// root itself is printed first, telling that find is working
+		var command = "find " + shellQuote(root) +
+			" \\( -path " + shellQuote(globEscape(root)) +
+			" -o -iname " + shellQuote("*" + globEscape(query) + "*") +
+			" \\) -print0";
+
+		// counted as a channel held for long, results are stat'ed on another
+		try (var reserved = c.reserveLongLivedChannel(null);
+				var channel = c.getSession().createExecChannel(command)) {
+			channel.setErr(new NullOutputStream());
+			channel.open().verify(EXEC_TIMEOUT);
+			// e.g. sftp-only servers forcing sftp-server, which waits for input
+			channel.getInvertedIn().close();
+			var events = channel.waitFor(EnumSet.of(
+				ClientChannelEvent.STDOUT_DATA, ClientChannelEvent.EOF,
+				ClientChannelEvent.CLOSED), EXEC_TIMEOUT);
+			var in = new BufferedInputStream(channel.getInvertedOut());
+			if (events.contains(ClientChannelEvent.TIMEOUT) ||
+					!root.equals(readNulTerminated(in))) {
+				Log.i(TAG, "find not available, walking instead");
+				cache.setFindUnavailable();
+				return null;
+			}
+
+			// closing the channel stops find, on both of these
+			var found = 0;
+			try (var sftp = c.getClient(null)) {
+				var batch = new ArrayList<String>();
+				String path;
+				while ((path = readNulTerminated(in)) != null) {
+					if (search.isCanceled()) {
+						return null;
+					}
+					if (!path.startsWith(prefix)) {
+						continue;
+					}
+					if (++found > MAX_WALK_ENTRIES) {
+						if (!batch.isEmpty()) {
+							search.add(lstat(c, sftp, batch));
+						}
+						return "Search stopped after " + MAX_WALK_ENTRIES +
+							" results";
+					}
+					batch.add(documentIdFromPath(rootDocumentId,
+						path.substring(prefix.length() - 1)));
+					// flush when idle, so that results show up early
+					if (batch.size() >= SEARCH_BATCH_SIZE ||
+							in.available() == 0) {
+						search.add(lstat(c, sftp, batch));
+						batch.clear();
+						progress.run();
+					}
+				}
+				if (!batch.isEmpty()) {
+					search.add(lstat(c, sftp, batch));
+				}
+			}
+		}
+		return null;
+	}
+
+	// bounded parallel walk from root, returns why results are partial, if so
+	private String searchViaWalk(SftpConnection c,
+			SftpSearchCache.Search search, String query, Runnable progress) {
+		var pending = new LinkedBlockingQueue<String>();
+		pending.add(c.params().getRootDocumentId().toString());
+		// queued, or being read
+		var outstanding = new AtomicInteger(1);
+		var seen = new AtomicInteger();
+		var truncated = new AtomicBoolean();
+		var failed = new AtomicBoolean();
+		var tree = Collections.synchronizedList(
+			new ArrayList<SftpSearchCache.Match>());
+
+		// thumbnails take up to half of channels, leave most of the rest for
+		// browsing, which also gets a turn between directories
+		var workers = Math.max(1, c.tuning().maxChannels() / 4);
+		var executor = Executors.newFixedThreadPool(workers);
+		var futures = new CompletableFuture<?>[workers];
+		for (var i = 0; i < workers; i++) {
+			futures[i] = CompletableFuture.runAsync(() -> {
+				try {
+					while (outstanding.get() > 0 && !truncated.get() &&
+							!search.isCanceled()) {
+						var documentId = pending.poll(100, TimeUnit.MILLISECONDS);
+						if (documentId == null) {
+							continue;
+						}
+						try (var sftp = c.getClient(null)) {
+							var path = pathFromDocumentId(documentId);
+							var documentIds = new ArrayList<String>();
+							var lstats = new ArrayList<SftpClient.Attributes>();
+							for (var entry : sftp.readDir(path)) {
+								var name = entry.getFilename();
+								if (".".equals(name) || "..".equals(name)) {
+									continue;
+								}
+								documentIds.add(documentId + "/" + name);
+								lstats.add(entry.getAttributes());
+							}
+
+							var found = new ArrayList<SftpSearchCache.Match>();
+							for (var m : toMatches(c, sftp, documentIds, lstats)) {
+								if (seen.incrementAndGet() > MAX_WALK_ENTRIES) {
+									truncated.set(true);
+									break;
+								}
+								tree.add(m);
+								if (SftpSearchCache.matches(m.name(), query)) {
+									found.add(m);
+								}
+								// symlinks are not followed, they may loop
+								if (m.attributes().lstat().isDirectory()) {
+									outstanding.incrementAndGet();
+									pending.add(m.documentId());
+								}
+							}
+							if (!found.isEmpty()) {
+								search.add(found);
+								progress.run();
+							}
+						} catch (IOException|UncheckedIOException e) {
+							Log.w(TAG, "cannot walk " + documentId, e);
+							failed.set(true);
+						} finally {
+							outstanding.decrementAndGet();
+						}
+					}
+				} catch (InterruptedException e) {
+					failed.set(true);
+				}
+			}, executor);
+		}
+		try {
+			CompletableFuture.allOf(futures).join();
+		} finally {
+			executor.shutdown();
+		}
+
+		if (search.isCanceled()) {
+			return null;
+		} else if (truncated.get()) {
+			return "Search stopped after " + MAX_WALK_ENTRIES + " files";
+		} else if (failed.get()) {
+			return "Some folders cannot be searched";
+		}
+		c.searchCache().putTree(new ArrayList<>(tree));
+		return null;
+	}
+
+	private void searchInBackground(SftpConnection c,
+			SftpSearchCache.Search search, String query, Uri notificationUri) {
+		CompletableFuture.runAsync(() -> {
+			var lastNotified = new AtomicLong(SystemClock.elapsedRealtime());
+			Runnable progress = () -> {
+				var now = SystemClock.elapsedRealtime();
+				var last = lastNotified.get();
+				if (now - last >= LISTING_NOTIFY_INTERVAL.toMillis() &&
+						lastNotified.compareAndSet(last, now)) {
+					cr.notifyChange(notificationUri, null, 0);
+				}
+			};
+			String info = null;
+			try {
+				// find needs a channel besides the one stat'ing its results
+				var canFind = c.tuning().maxChannels() >= 2;
+				if (canFind) {
+					info = searchViaFind(c, search, query, progress);
+				}
+				if (!canFind || c.searchCache().isFindUnavailable()) {
+					info = searchViaWalk(c, search, query, progress);
+				}
+			} catch (IOException|UncheckedIOException e) {
+				Log.w(TAG, "cannot finish search", e);
+				info = "Search failed: " + e.getMessage();
+			}
+			search.complete(info);
+			cr.notifyChange(notificationUri, null, 0);
+		}, backgroundExecutor);
+	}
+
+	@Override
+	public Cursor querySearchDocuments(String rootId, String query,
+			String[] projection) throws FileNotFoundException {
+		var cols = projection != null ? projection : DEFAULT_DOC_PROJECTION;
+		var result = new MatrixCursor(cols);
+		var notificationUri = DocumentsContract.buildSearchDocumentsUri(
+			AUTHORITY, rootId, query);
+		result.setNotificationUri(cr, notificationUri);
+
+		var p = profileOf(rootId);
+		hoistFsCreds(p);
+		var c = p.conn;
+		var cache = c.searchCache();
+		var matches = cache.searchTree(query);
+		// the index is only trusted once crawled completely
+		if (matches == null && treeIndexEnabled &&
+				treeIndex.getCrawledTime(getIndexRoot(c)) != 0) {
+			// one more, to tell if there are more
+			matches = treeIndex.search(getIndexRoot(c), query,
+				MAX_INDEX_RESULTS + 1);
+			if (matches.size() > MAX_INDEX_RESULTS) {
+				matches = matches.subList(0, MAX_INDEX_RESULTS);
+				var extras = new Bundle();
+				extras.putString(DocumentsContract.EXTRA_INFO,
+					"Showing first " + MAX_INDEX_RESULTS + " matches");
+				result.setExtras(extras);
+			}
+		}
+		if (matches == null) {
+			SftpSearchCache.Search search;
+			synchronized (cache) {
+				search = cache.get(query);
+				if (search == null ||
+						(search.isComplete() && !cache.isFresh(search))) {
+					search = cache.begin(query);
+					searchInBackground(c, search, query, notificationUri);
+				}
+			}
+			if (!search.isComplete()) {
+				setLoading(result);
+			} else if (search.info() != null) {
+				var extras = new Bundle();
+				extras.putString(DocumentsContract.EXTRA_INFO, search.info());
+				result.setExtras(extras);
+			}
+			matches = search.matches();
+		}
+		addRows(result, p, matches);
+		return result;
+	}
+
+	@Override
+	public Cursor queryRecentDocuments(String rootId, String[] projection)
+			throws FileNotFoundException {
+		var cols = projection != null ? projection : DEFAULT_DOC_PROJECTION;
+		var result = new MatrixCursor(cols);
+		result.setNotificationUri(cr,
+			DocumentsContract.buildRecentDocumentsUri(AUTHORITY, rootId));
+		if (!treeIndexEnabled) {
+			return result;
+		}
+		var p = profileOf(rootId);
+		hoistFsCreds(p);
+		addRows(result, p,
+			treeIndex.getRecent(getIndexRoot(p.conn), MAX_RECENTS));
+		return result;
+	}
+
 	@Override
 	public Cursor queryDocument(String documentId, String[] projection)
 			throws FileNotFoundException {
 		var cols = projection != null ? projection : DEFAULT_DOC_PROJECTION;
 		var result = new MatrixCursor(cols);
-		hoistFsCreds();
+		var p = profileOf(documentId);
+		hoistFsCreds(p);
 
-		return performQuery(result, sftp -> {
-			var path = pathFromDocumentId(documentId);
-			var stat = ioWithCursor(result, () -> sftp.lstat(path))
-				.orElseThrow(this::abortQuery);
+		var path = pathFromDocumentId(documentId);
+		// not to see, and cache, attributes before deferred writes land
+		p.awaitClosing(path, null);
+		var parentPath = pathFromDocumentId(toParentDocumentId(documentId));
+		// parent is only needed for flags, e.g. not for getDocumentType
+		var needsParent = Arrays.asList(cols).contains(Document.COLUMN_FLAGS);
+		var cache = p.conn.attributeCache();
+		var cachedAttrs = cache.getAttributes(path);
+		var cachedParentStat = needsParent ? cache.getStat(parentPath) : null;
+		if (cachedAttrs != null && (!needsParent || cachedParentStat != null)) {
+			result.addRow(getDocumentRow(p, result, documentId, cachedAttrs,
+				cachedParentStat));
+			return result;
+		}
 
-			var parentPath = pathFromDocumentId(toParentDocumentId(documentId));
-			var parentStat = ioWithCursor(result, () -> sftp.stat(parentPath))
-				.orElseThrow(this::abortQuery);
+		return performQuery(p, result, sftp -> {
+			var attrs = cachedAttrs;
+			if (attrs == null) {
+				var stat = ioWithCursor(result, () -> sftp.lstat(path))
+					.orElseThrow(this::abortQuery);
+				attrs = ioWithCursor(result,
+					() -> resolve(sftp, result, documentId, stat))
+					.orElseThrow(this::abortQuery);
+				cache.put(path, attrs);
+			}
+
+			var parentStat = cachedParentStat;
+			if (needsParent && parentStat == null) {
+				parentStat = ioWithCursor(result, () -> sftp.stat(parentPath))
+					.orElseThrow(this::abortQuery);
+				cache.putStat(parentPath, parentStat);
+			}
 
-			result.addRow(getDocumentRow(sftp, result, documentId, stat, parentStat));
+			result.addRow(getDocumentRow(p, result, documentId, attrs,
+				parentStat));
 		});
 	}
 
@@ -549,11 +1900,48 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		return getDocumentMetadataViaProviders(documentId);
 	}
 
+	@Override
+	public List<ThumbnailsProvider> getThumbnailsProviders() {
+		return thumbnailsProviders;
+	}
+
+	@Override
+	public int getMetadataPrefetchBytes() {
+		return tuning.headerPrefetchBytes();
+	}
+
+	@Override
+	public Executor getMetadataExecutor() {
+		return backgroundExecutor;
+	}
+
+	@Override
+	public MetadataCache getMetadataCache() {
+		return metadataCache.isEnabled() ? metadataCache : null;
+	}
+
+	@Override
+	public ThumbnailCache getThumbnailCache() {
+		return thumbnailCacheMaxBytes > 0 ? thumbnailCache : null;
+	}
+
 	@Override
 	public AssetFileDescriptor openDocumentThumbnail(String documentId,
 			Point sizeHint, CancellationSignal signal)
 			throws AuthenticationRequiredException, FileNotFoundException {
-		return openDocumentThumbnailViaProviders(documentId, sizeHint, signal);
+		var cached = openCachedDocumentThumbnail(documentId, sizeHint);
+		if (cached != null) {
+			return cached;
+		}
+
+		return thumbnailScheduler.run(documentId, signal, () -> {
+			// pre-generated ones are the cheapest
+			try {
+				return openDocumentThumbnailViaXdg(documentId, sizeHint, signal);
+			} catch (FileNotFoundException e) {}
+			return openDocumentThumbnailViaProviders(documentId, sizeHint,
+				signal);
+		}, () -> openCachedDocumentThumbnail(documentId, sizeHint));
 	}
 
 	@Override
@@ -561,14 +1949,90 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 		var cols = projection != null ? projection : DEFAULT_ROOT_PROJECTION;
 		var result = new MatrixCursor(cols);
 
-		var rootDocumentId = params.getRootDocumentId().toString();
+		// asked in parallel, and not waited for long, so that an unreachable
+		// server holds up no other
+		var queries = new LinkedHashMap<Profile, CompletableFuture<Long[]>>();
+		var scratches = new LinkedHashMap<Profile, MatrixCursor>();
+		for (var p : profiles.values()) {
+			if (SystemClock.elapsedRealtime() - p.lastOfflineSync >
+					OFFLINE_SYNC_INTERVAL.toMillis()) {
+				syncPinned(p);
+			}
+			crawlInBackground(p);
+			var scratch = new MatrixCursor(new String[0]);
+			scratches.put(p, scratch);
+			queries.put(p, CompletableFuture.supplyAsync(
+				() -> queryBytesInfo(p, scratch), backgroundExecutor));
+		}
+
+		var info = new ArrayList<String>();
+		var deadline = SystemClock.elapsedRealtime() +
+			ROOTS_QUERY_TIMEOUT.toMillis();
+		queries.forEach((p, query) -> {
+			var bytesInfo = awaitBytesInfo(p, query, deadline);
+			// stragglers may still be writing to theirs
+			if (query.isDone()) {
+				var error = scratches.get(p).getExtras()
+					.getString(DocumentsContract.EXTRA_INFO);
+				if (error != null) {
+					info.add(error);
+				}
+			}
+			var params = p.conn.params();
+			result.addRow(Arrays.stream(cols).map(c -> switch(c) {
+			case Root.COLUMN_ROOT_ID -> p.rootDocumentId;
+			case Root.COLUMN_DOCUMENT_ID -> p.rootDocumentId;
+			case Root.COLUMN_FLAGS ->
+				Root.FLAG_SUPPORTS_IS_CHILD | Root.FLAG_SUPPORTS_CREATE |
+				Root.FLAG_SUPPORTS_SEARCH |
+				(treeIndexEnabled ? Root.FLAG_SUPPORTS_RECENTS : 0);
+			case Root.COLUMN_TITLE -> SftpProfiles.DEFAULT.equals(p.name) ?
+				String.format("%s@%s:%s", params.username(), params.host(),
+					params.remotePath()) : p.name;
+			case Root.COLUMN_ICON -> R.mipmap.sym_def_app_icon;
+			// DocumentsUI shows localized and humanized COLUMN_AVAILABLE_BYTES
+			// when summary is not present, which is more useful and nicer
+			// case Root.COLUMN_SUMMARY -> "SFTP with user: " + params.username();
+			case Root.COLUMN_CAPACITY_BYTES ->
+				bytesInfo != null ? bytesInfo[0] : null;
+			case Root.COLUMN_AVAILABLE_BYTES ->
+				bytesInfo != null ? bytesInfo[1] : null;
+			default -> null;
+			}).toArray());
+		});
+		if (!info.isEmpty()) {
+			var extras = new Bundle();
+			extras.putString(DocumentsContract.EXTRA_INFO,
+				String.join("\n", info));
+			result.setExtras(extras);
+		}
 
-		var bytesInfo = mustIOWithCursor(result, () -> {
+		return result;
+	}
+
+	// null if not known by deadline, in elapsedRealtime
+	private Long[] awaitBytesInfo(Profile p, CompletableFuture<Long[]> query,
+			long deadline) {
+		try {
+			return query.get(Math.max(0,
+				deadline - SystemClock.elapsedRealtime()),
+				TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			Log.w(TAG, "space of " + p.rootDocumentId + " not known in time");
+		} catch (ExecutionException|InterruptedException e) {
+			Log.w(TAG, "cannot query space of " + p.rootDocumentId, e);
+		}
+		return null;
+	}
+
+	private Long[] queryBytesInfo(Profile p, Cursor cursor) {
+		var remotePath = p.conn.params().remotePath();
+		return mustIOWithCursor(cursor, () -> {
 			// unlike performQuery, connection/auth failure is not fatal here
-			try (var sftp = getClient()) {
+			try (var sftp = getClient(p)) {
 				var spaceAvailable = sftp.getExtension(SpaceAvailableExtension.class);
 				if (spaceAvailable.isSupported()) {
-					var info = spaceAvailable.available(params.remotePath());
+					var info = spaceAvailable.available(remotePath);
 
 					return new Long[]{
 						info.bytesOnDevice,
@@ -578,7 +2042,7 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 
 				var statvfs = sftp.getExtension(OpenSSHStatPathExtension.class);
 				if (statvfs.isSupported()) {
-					var info = statvfs.stat(params.remotePath());
+					var info = statvfs.stat(remotePath);
 
 					return new Long[]{
 						info.f_blocks * info.f_frsize,
@@ -588,25 +2052,5 @@ public class SftpDocumentsProvider extends AbstractUnixLikeDocumentsProvider
 			}
 			return null;
 		}, DocumentsContract.EXTRA_INFO, "cannot statvfs: ").orElse(null);
-
-		result.addRow(Arrays.stream(cols).map(c -> switch(c) {
-		case Root.COLUMN_ROOT_ID -> rootDocumentId;
-		case Root.COLUMN_DOCUMENT_ID -> rootDocumentId;
-		case Root.COLUMN_FLAGS ->
-			Root.FLAG_SUPPORTS_IS_CHILD | Root.FLAG_SUPPORTS_CREATE;
-		case Root.COLUMN_TITLE ->
-			String.format("%s@%s:%s", params.username(), params.host(), params.remotePath());
-		case Root.COLUMN_ICON -> R.mipmap.sym_def_app_icon;
-		// DocumentsUI shows localized and humanized COLUMN_AVAILABLE_BYTES
-		// when summary is not present, which is more useful and nicer
-		// case Root.COLUMN_SUMMARY -> "SFTP with user: " + params.username();
-		case Root.COLUMN_CAPACITY_BYTES ->
-			bytesInfo != null ? bytesInfo[0] : null;
-		case Root.COLUMN_AVAILABLE_BYTES ->
-			bytesInfo != null ? bytesInfo[1] : null;
-		default -> null;
-		}).toArray());
-
-		return result;
 	}
 }
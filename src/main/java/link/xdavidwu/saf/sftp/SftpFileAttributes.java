@@ -0,0 +1,14 @@
+package link.xdavidwu.saf.sftp;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+// attributes of a file, with symlinks resolved
+// stat is lstat if not a symlink, or if the symlink cannot be followed,
+// in which case linkTarget is filled if known
+public record SftpFileAttributes(SftpClient.Attributes lstat,
+		SftpClient.Attributes stat, String linkTarget) {
+
+	public SftpFileAttributes(SftpClient.Attributes lstat) {
+		this(lstat, lstat, null);
+	}
+}
@@ -7,8 +7,11 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.util.Log;
 
 public class SftpIOService extends Service {
+	private static final String TAG = "SftpIOService";
+
 	@Override
 	public IBinder onBind(Intent intent) {
 		var nm = getSystemService(NotificationManager.class);
@@ -17,9 +20,15 @@ public class SftpIOService extends Service {
 			NotificationManager.IMPORTANCE_NONE));
 		// XXX not really shown (we don't even have POST_NOTIFICATIONS?)
 		// but it does become FGS
-		startForeground(42,
-			new Notification.Builder(this, "FOREGROUND")
-				.setContentText("Processing SFTP file IO...").build());
+		try {
+			startForeground(42,
+				new Notification.Builder(this, "FOREGROUND")
+					.setContentText("Processing SFTP file IO...").build());
+		} catch (IllegalStateException e) {
+			// ForegroundServiceStartNotAllowedException from the background
+			// since S, the binding still helps a bit
+			Log.w(TAG, "cannot start as foreground service", e);
+		}
 		return new Binder();
 	}
 }
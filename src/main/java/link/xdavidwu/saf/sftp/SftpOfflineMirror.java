@@ -0,0 +1,105 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+import link.xdavidwu.saf.Digests;
+import link.xdavidwu.saf.FileVersion;
+
+/*
+ * Local copies of pinned files, for reading them without round trips, or
+ * without the server at all.
+ *
+ * Copies are named by hash of qualified path, and keep size and mtime of the
+ * remote file they are copied from as their own length and mtime, so that
+ * no index is needed to detect changes.
+ */
+public class SftpOfflineMirror {
+	private static final String TAG = "SftpOfflineMirror";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File dir;
+
+	public SftpOfflineMirror(File dir) {
+		this.dir = dir;
+	}
+
+	public static String name(String qualifiedPath) {
+		return Digests.sha1Hex(qualifiedPath);
+	}
+
+	public boolean isEmpty() {
+		var names = dir.list();
+		return names == null || names.length == 0;
+	}
+
+	public boolean contains(String qualifiedPath) {
+		return new File(dir, name(qualifiedPath)).exists();
+	}
+
+	public boolean isCurrent(FileVersion version) {
+		var file = new File(dir, name(version.path()));
+		return file.exists() && file.length() == version.size() &&
+			file.lastModified() == version.mtime();
+	}
+
+	// regardless of whether it is current, e.g. when the server is unreachable
+	public ParcelFileDescriptor open(String qualifiedPath)
+			throws FileNotFoundException {
+		return ParcelFileDescriptor.open(new File(dir, name(qualifiedPath)),
+			ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+
+	public void download(SftpClient sftp, String path, FileVersion version)
+			throws IOException {
+		var name = name(version.path());
+		dir.mkdirs();
+		var tmp = File.createTempFile(name, TEMP_SUFFIX, dir);
+		try {
+			try (var in = sftp.read(path);
+					var out = new FileOutputStream(tmp)) {
+				var buf = new byte[64 * 1024];
+				int len;
+				while ((len = in.read(buf)) != -1) {
+					out.write(buf, 0, len);
+				}
+			}
+			if (tmp.length() != version.size()) {
+				throw new IOException(path + " changed while downloading");
+			}
+			// isCurrent() would never hold otherwise
+			if (!tmp.setLastModified(version.mtime())) {
+				throw new IOException("cannot set mtime of " + tmp);
+			}
+			if (!tmp.renameTo(new File(dir, name))) {
+				throw new IOException("cannot rename " + tmp);
+			}
+		} finally {
+			if (tmp.exists() && !tmp.delete()) {
+				Log.w(TAG, "cannot delete " + tmp);
+			}
+		}
+	}
+
+	// by name()
+	public void retainOnly(Set<String> names) {
+		var files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (var file : files) {
+			if (!names.contains(file.getName())) {
+				Log.v(TAG, "dropping " + file.getName());
+				file.delete();
+			}
+		}
+	}
+}
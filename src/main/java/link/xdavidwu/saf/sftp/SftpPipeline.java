@@ -0,0 +1,265 @@
+package link.xdavidwu.saf.sftp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.apache.sshd.sftp.client.RawSftpClient;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.common.SftpException;
+import org.apache.sshd.sftp.common.SftpHelper;
+
+/*
+ * Split send/receive of SFTP requests, so that multiple requests can be kept
+ * outstanding on a single channel instead of paying a round trip each.
+ *
+ * Every sent request must be received or discarded eventually, otherwise its
+ * response lingers in the client.
+ */
+public class SftpPipeline {
+	private final RawSftpClient raw;
+
+	private record Response(int type, Buffer buffer) {}
+
+	private final int version;
+
+	public SftpPipeline(SftpClient sftp) {
+		if (!(sftp instanceof RawSftpClient r)) {
+			throw new IllegalArgumentException(
+				"SftpClient does not support raw requests");
+		}
+		raw = r;
+		version = sftp.getVersion();
+	}
+
+	private Response receive(int id) throws IOException {
+		var buf = raw.receive(id);
+		buf.getInt(); // length
+		var type = buf.getUByte();
+		buf.getInt(); // id
+		return new Response(type, buf);
+	}
+
+	private SftpException toException(int status, Buffer buf) {
+		// message is not mandatory before v3
+		var msg = buf.available() > 0 ? buf.getString() :
+			SftpConstants.getStatusName(status);
+		return new SftpException(status, msg);
+	}
+
+	private IOException unexpected(Response r) {
+		return new IOException("unexpected SFTP response type " +
+			SftpConstants.getCommandMessageName(r.type()));
+	}
+
+	public void discard(int id) throws IOException {
+		raw.receive(id);
+	}
+
+	private int sendPath(int cmd, String path) throws IOException {
+		var buf = new ByteArrayBuffer(path.length() + Long.SIZE, false);
+		buf.putString(path);
+		return raw.send(cmd, buf);
+	}
+
+	private void checkVersion() throws IOException {
+		// we only speak v3 for now, see SftpClientPool
+		if (version != SftpConstants.SFTP_V3) {
+			throw new IOException("unsupported SFTP version " + version);
+		}
+	}
+
+	public int sendStat(String path) throws IOException {
+		checkVersion();
+		return sendPath(SftpConstants.SSH_FXP_STAT, path);
+	}
+
+	public int sendLstat(String path) throws IOException {
+		checkVersion();
+		return sendPath(SftpConstants.SSH_FXP_LSTAT, path);
+	}
+
+	public int sendReadLink(String path) throws IOException {
+		return sendPath(SftpConstants.SSH_FXP_READLINK, path);
+	}
+
+	public int sendOpenDir(String path) throws IOException {
+		return sendPath(SftpConstants.SSH_FXP_OPENDIR, path);
+	}
+
+	public int sendRemove(String path) throws IOException {
+		return sendPath(SftpConstants.SSH_FXP_REMOVE, path);
+	}
+
+	public int sendRmdir(String path) throws IOException {
+		return sendPath(SftpConstants.SSH_FXP_RMDIR, path);
+	}
+
+	private int sendHandle(int cmd, byte[] handle) throws IOException {
+		var buf = new ByteArrayBuffer(handle.length + Long.SIZE, false);
+		buf.putBytes(handle);
+		return raw.send(cmd, buf);
+	}
+
+	// handle from receiveHandle()
+	public int sendReadDir(byte[] handle) throws IOException {
+		checkVersion();
+		return sendHandle(SftpConstants.SSH_FXP_READDIR, handle);
+	}
+
+	// answered with status
+	public int sendClose(byte[] handle) throws IOException {
+		return sendHandle(SftpConstants.SSH_FXP_CLOSE, handle);
+	}
+
+	// org.apache.sshd.sftp.client.impl.AbstractSftpClient::readAttributes
+	private SftpClient.Attributes readAttributes(Buffer buf) {
+		var attrs = new SftpClient.Attributes();
+		var flags = buf.getInt();
+		if ((flags & SftpConstants.SSH_FILEXFER_ATTR_SIZE) != 0) {
+			attrs.setSize(buf.getLong());
+		}
+		if ((flags & SftpConstants.SSH_FILEXFER_ATTR_UIDGID) != 0) {
+			attrs.owner(buf.getInt(), buf.getInt());
+		}
+		if ((flags & SftpConstants.SSH_FILEXFER_ATTR_PERMISSIONS) != 0) {
+			var perms = buf.getInt();
+			attrs.setPermissions(perms);
+			attrs.setType(SftpHelper.permissionsToFileType(perms));
+		}
+		if ((flags & SftpConstants.SSH_FILEXFER_ATTR_ACMODTIME) != 0) {
+			attrs.setAccessTime(SftpHelper.readTime(buf, version, flags));
+			attrs.setModifyTime(SftpHelper.readTime(buf, version, flags));
+		}
+		// extensions are of no use to us
+		return attrs;
+	}
+
+	public SftpClient.Attributes receiveAttributes(int id)
+			throws IOException {
+		var r = receive(id);
+		var buf = r.buffer();
+		switch (r.type()) {
+		case SftpConstants.SSH_FXP_ATTRS:
+			return readAttributes(buf);
+		case SftpConstants.SSH_FXP_STATUS:
+			throw toException(buf.getInt(), buf);
+		default:
+			throw unexpected(r);
+		}
+	}
+
+	// for requests answered with a single name, e.g. READLINK
+	public String receiveName(int id) throws IOException {
+		var r = receive(id);
+		var buf = r.buffer();
+		switch (r.type()) {
+		case SftpConstants.SSH_FXP_NAME:
+			if (buf.getInt() != 1) {
+				throw new IOException("SFTP name response with not one name");
+			}
+			return buf.getString();
+		case SftpConstants.SSH_FXP_STATUS:
+			throw toException(buf.getInt(), buf);
+		default:
+			throw unexpected(r);
+		}
+	}
+
+	public int sendRead(SftpClient.Handle handle, long offset, int length)
+			throws IOException {
+		var id = handle.getIdentifier();
+		var buf = new ByteArrayBuffer(id.length + Long.SIZE, false);
+		buf.putBytes(id);
+		buf.putLong(offset);
+		buf.putUInt(length);
+		return raw.send(SftpConstants.SSH_FXP_READ, buf);
+	}
+
+	// returns number of bytes read into data, or -1 on EOF
+	public int receiveRead(int id, byte[] data, int off) throws IOException {
+		var r = receive(id);
+		var buf = r.buffer();
+		switch (r.type()) {
+		case SftpConstants.SSH_FXP_DATA:
+			var len = buf.getInt();
+			if (len < 0 || len > data.length - off) {
+				throw new IOException("SFTP read response overflows buffer");
+			}
+			buf.getRawBytes(data, off, len);
+			return len;
+		case SftpConstants.SSH_FXP_STATUS:
+			var status = buf.getInt();
+			if (status == SftpConstants.SSH_FX_EOF) {
+				return -1;
+			}
+			throw toException(status, buf);
+		default:
+			throw unexpected(r);
+		}
+	}
+
+	// for requests answered with a handle, e.g. OPENDIR
+	public byte[] receiveHandle(int id) throws IOException {
+		var r = receive(id);
+		var buf = r.buffer();
+		switch (r.type()) {
+		case SftpConstants.SSH_FXP_HANDLE:
+			return buf.getBytes();
+		case SftpConstants.SSH_FXP_STATUS:
+			throw toException(buf.getInt(), buf);
+		default:
+			throw unexpected(r);
+		}
+	}
+
+	// returns null on EOF, . and .. are included as sent by server
+	public List<SftpClient.DirEntry> receiveDir(int id) throws IOException {
+		var r = receive(id);
+		var buf = r.buffer();
+		switch (r.type()) {
+		case SftpConstants.SSH_FXP_NAME:
+			var count = buf.getInt();
+			var entries = new ArrayList<SftpClient.DirEntry>();
+			for (var i = 0; i < count; i++) {
+				var name = buf.getString();
+				var longName = buf.getString();
+				entries.add(new SftpClient.DirEntry(name, longName,
+					readAttributes(buf)));
+			}
+			return entries;
+		case SftpConstants.SSH_FXP_STATUS:
+			var status = buf.getInt();
+			if (status == SftpConstants.SSH_FX_EOF) {
+				return null;
+			}
+			throw toException(status, buf);
+		default:
+			throw unexpected(r);
+		}
+	}
+
+	public int sendWrite(SftpClient.Handle handle, long offset, byte[] data,
+			int off, int len) throws IOException {
+		var id = handle.getIdentifier();
+		var buf = new ByteArrayBuffer(id.length + len + Long.SIZE, false);
+		buf.putBytes(id);
+		buf.putLong(offset);
+		buf.putBytes(data, off, len);
+		return raw.send(SftpConstants.SSH_FXP_WRITE, buf);
+	}
+
+	public void receiveStatus(int id) throws IOException {
+		var r = receive(id);
+		if (r.type() != SftpConstants.SSH_FXP_STATUS) {
+			throw unexpected(r);
+		}
+		var status = r.buffer().getInt();
+		if (status != SftpConstants.SSH_FX_OK) {
+			throw toException(status, r.buffer());
+		}
+	}
+}
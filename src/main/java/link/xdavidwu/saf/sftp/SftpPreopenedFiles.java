@@ -0,0 +1,109 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+/*
+ * Files just created, kept open on their channels for the open that usually
+ * follows, e.g. when DocumentsUI copies files in. This saves a CLOSE and an
+ * OPEN round trip, and borrowing a channel, per file.
+ *
+ * Parked files hold their channels, so only a few are kept, and unclaimed ones
+ * are closed after a while.
+ */
+public class SftpPreopenedFiles implements AutoCloseable {
+	private static final String TAG = "SftpPreopenedFiles";
+	private static final Duration TTL = Duration.ofSeconds(10);
+
+	public record Entry(SftpClient sftp, SftpClient.CloseableHandle file,
+			long time) {}
+
+	private final int maxFiles;
+	private final Handler handler;
+	// by path, oldest first
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private boolean closed;
+
+	public SftpPreopenedFiles(int maxFiles, Handler handler) {
+		this.maxFiles = maxFiles;
+		this.handler = handler;
+	}
+
+	// on true, the entry is owned here until claimed
+	public synchronized boolean park(String path, SftpClient sftp,
+			SftpClient.CloseableHandle file) {
+		if (closed || entries.size() >= maxFiles || entries.containsKey(path)) {
+			return false;
+		}
+		entries.put(path, new Entry(sftp, file,
+			SystemClock.elapsedRealtime()));
+		handler.removeCallbacks(expire);
+		handler.postDelayed(expire, TTL.toMillis());
+		return true;
+	}
+
+	// null if not parked, the caller owns it afterwards
+	public synchronized Entry claim(String path) {
+		return entries.remove(path);
+	}
+
+	private final Runnable expire = new Runnable() {
+		@Override
+		public void run() {
+			var expired = new ArrayList<Entry>();
+			var deadline = SystemClock.elapsedRealtime() - TTL.toMillis();
+			synchronized (SftpPreopenedFiles.this) {
+				var it = entries.values().iterator();
+				while (it.hasNext()) {
+					var entry = it.next();
+					if (entry.time() > deadline) {
+						break;
+					}
+					expired.add(entry);
+					it.remove();
+				}
+				if (!entries.isEmpty()) {
+					var next = entries.values().iterator().next().time() - deadline;
+					handler.postDelayed(this, next);
+				}
+			}
+			expired.forEach(SftpPreopenedFiles::closeQuietly);
+		}
+	};
+
+	public static void closeQuietly(Entry entry) {
+		try (var sftp = entry.sftp()) {
+			sftp.close(entry.file());
+		} catch (IOException e) {
+			Log.w(TAG, "failed to close preopened file", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		ArrayList<Entry> remaining;
+		synchronized (this) {
+			closed = true;
+			handler.removeCallbacks(expire);
+			remaining = new ArrayList<>(entries.values());
+			entries.clear();
+		}
+		// handles go away with their channels, no need for round trips
+		for (var entry : remaining) {
+			try {
+				entry.sftp().close();
+			} catch (IOException e) {
+				Log.w(TAG, "failed to release channel", e);
+			}
+		}
+	}
+}
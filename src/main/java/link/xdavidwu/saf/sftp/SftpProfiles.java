@@ -0,0 +1,48 @@
+package link.xdavidwu.saf.sftp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/*
+ * Connection profiles, each served as a root of its own.
+ *
+ * The default profile lives in the default preferences, together with
+ * settings shared by all profiles, e.g. tuning. Named ones keep the same keys
+ * in preference files of their own.
+ */
+public final class SftpProfiles {
+	public static final String DEFAULT = "";
+	// names of the other profiles, one per line
+	public static final String NAMES_KEY = "profiles";
+	// kept per profile, everything else is shared
+	public static final Set<String> KEYS = Set.of(
+		"host", "port", "username", "mountpoint", "passwd", "pinned_paths");
+
+	private SftpProfiles() {}
+
+	// the default one first
+	public static List<String> names(SharedPreferences sp) {
+		var names = new ArrayList<String>();
+		names.add(DEFAULT);
+		names.addAll(Arrays.stream(sp.getString(NAMES_KEY, "").split("\n"))
+			.map(String::strip).filter(n -> !n.isEmpty()).distinct()
+			.collect(Collectors.toList()));
+		return names;
+	}
+
+	public static SharedPreferences of(Context ctx, String name) {
+		if (DEFAULT.equals(name)) {
+			return PreferenceManager.getDefaultSharedPreferences(ctx);
+		}
+		return ctx.getSharedPreferences("profile_" + Uri.encode(name),
+			Context.MODE_PRIVATE);
+	}
+}
@@ -13,21 +13,43 @@ import android.util.Log;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 import org.apache.sshd.sftp.client.SftpClient;
 import org.apache.sshd.sftp.client.extensions.openssh.OpenSSHFsyncExtension;
 import org.apache.sshd.sftp.common.SftpConstants;
 import org.apache.sshd.sftp.common.SftpException;
 
+import link.xdavidwu.saf.BlockCache;
+import link.xdavidwu.saf.FileVersion;
 import link.xdavidwu.saf.PerformsUnixLikeIO;
 
 public class SftpProxyFileDescriptorCallback
 		extends ProxyFileDescriptorCallback implements PerformsUnixLikeIO {
 	private static final int OPENSSH_SFTP_MAX_MSG_LENGTH = 256 * 1024;
 	private static final int OPENSSH_SFTP_MAX_WRITE_LENGTH = OPENSSH_SFTP_MAX_MSG_LENGTH - 1024;
+	private static final int OPENSSH_SFTP_MAX_READ_LENGTH = OPENSSH_SFTP_MAX_MSG_LENGTH - 1024;
 
 	private SftpClient sftp;
 	private SftpClient.CloseableHandle file;
+	private SftpReadAhead readAhead;
+	private SftpWriteBehind writeBehind;
+	// null if the file may be written to
+	private SftpAttributeCache attributeCache;
+	// null if the file may be written to
+	private BlockCache blockCache;
+	private String qualifiedPath;
+	// of the opened file, as key into blockCache
+	private FileVersion version;
+	private Runnable onModified;
+	// with the close still pending, which includes onModified
+	private Consumer<CompletableFuture<Void>> onReleased;
+	// for closing, after release
+	private Executor executor;
+	private boolean modified;
 	private Context ctx;
 	private ServiceConnection serviceConnection = new ServiceConnection() {
 		@Override
@@ -37,9 +59,25 @@ public class SftpProxyFileDescriptorCallback
 	};
 
 	public SftpProxyFileDescriptorCallback(
-			SftpClient sftp, SftpClient.CloseableHandle file, Context ctx) {
+			SftpClient sftp, SftpClient.CloseableHandle file,
+			SftpTuningParameters tuning, SftpAttributeCache attributeCache,
+			BlockCache blockCache, String qualifiedPath,
+			Runnable onModified,
+			Consumer<CompletableFuture<Void>> onReleased, Executor executor,
+			Context ctx) {
 		this.sftp = sftp;
 		this.file = file;
+		this.readAhead = new SftpReadAhead(sftp, file,
+			tuning.readAheadDepth(), tuning.readAheadMaxBytes(),
+			OPENSSH_SFTP_MAX_READ_LENGTH);
+		this.writeBehind = new SftpWriteBehind(sftp, file,
+			tuning.writeBehindMaxBytes(), OPENSSH_SFTP_MAX_WRITE_LENGTH);
+		this.attributeCache = attributeCache;
+		this.blockCache = blockCache;
+		this.qualifiedPath = qualifiedPath;
+		this.onModified = onModified;
+		this.onReleased = onReleased;
+		this.executor = executor;
 		this.ctx = ctx;
 		var intent = new Intent(ctx, SftpIOService.class);
 		ctx.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
@@ -78,39 +116,91 @@ public class SftpProxyFileDescriptorCallback
 
 	@Override
 	public long onGetSize() throws ErrnoException {
-		return io("stat", () -> sftp.stat(file).getSize());
+		writeBehind.drain();
+		if (attributeCache != null) {
+			var stat = attributeCache.getStat(file.getPath());
+			if (stat != null) {
+				return stat.getSize();
+			}
+		}
+		return stat().getSize();
+	}
+
+	private SftpClient.Attributes stat() throws ErrnoException {
+		var stat = io("stat", () -> sftp.stat(file));
+		if (attributeCache != null) {
+			attributeCache.putStat(file.getPath(), stat);
+		}
+		if (version == null) {
+			version = new FileVersion(qualifiedPath, stat.getSize(),
+				stat.getModifyTime().toMillis());
+		}
+		return stat;
+	}
+
+	private int readViaBlockCache(long offset, int size, byte[] data)
+			throws ErrnoException {
+		if (version == null) {
+			// not from attributeCache, which may be stale
+			stat();
+		}
+		int read = 0;
+		while (read < size) {
+			var pos = offset + read;
+			var index = pos / BlockCache.BLOCK_SIZE;
+			var blockOffset = index * BlockCache.BLOCK_SIZE;
+			var block = blockCache.get(version, index);
+			if (block == null) {
+				var buf = new byte[BlockCache.BLOCK_SIZE];
+				var n = io("read", () -> readAhead.read(blockOffset, buf,
+					buf.length));
+				block = n == buf.length ? buf : Arrays.copyOf(buf, n);
+				// a short one is only complete at the end we know of
+				if (n == buf.length || blockOffset + n == version.size()) {
+					blockCache.put(version, index, block);
+				}
+			}
+
+			var blockPos = (int) (pos - blockOffset);
+			if (blockPos >= block.length) {
+				break;
+			}
+			var n = Math.min(size - read, block.length - blockPos);
+			System.arraycopy(block, blockPos, data, read, n);
+			read += n;
+		}
+		return read;
 	}
 
 	@Override
 	public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+		writeBehind.drain();
 		var start = Instant.now();
-		var sz = io("read", () -> {
-			int read = 0;
-			while (read < size) {
-				int r = sftp.read(file, offset + read, data, read, size - read);
-				if (r == -1) {
-					return read;
-				}
-				read += r;
-			}
-			return size;
-		});
+		var sz = blockCache != null && blockCache.isEnabled() ?
+			readViaBlockCache(offset, size, data) :
+			io("read", () -> readAhead.read(offset, data, size));
 		var ms = start.until(Instant.now(), ChronoUnit.MILLIS);
-		Log.v("SFTP", "r: " + size + "@" + offset + ": " + sz + " in " + ms + " ~ " + (sz / ms) + " kBps");
+		Log.v("SFTP", "r: " + size + "@" + offset + ": " + sz + " in " + ms + " ~ " + (sz / Math.max(ms, 1)) + " kBps");
 		return sz;
 	}
 
 	@Override
 	public int onWrite(long offset, int size, byte[] data)
 			throws ErrnoException {
+		readAhead.invalidate();
+		modified = true;
 		return io("write", () -> {
-			sftp.write(file, offset, data, 0, size);
+			writeBehind.write(offset, data, size);
 			return size;
 		});
 	}
 
 	@Override
 	public void onFsync() throws ErrnoException {
+		io("fsync", () -> {
+			writeBehind.flush();
+			return null;
+		});
 		var fsync = sftp.getExtension(OpenSSHFsyncExtension.class);
 		if (!fsync.isSupported()) {
 			throw new ErrnoException("fsync", OsConstants.EOPNOTSUPP);
@@ -124,11 +214,25 @@ public class SftpProxyFileDescriptorCallback
 	@Override
 	public void onRelease() {
 		Log.v("SFTP", "release");
-		try {
-			sftp.close(file);
-			sftp.close();
-		} catch (IOException e) {
-		}
-		ctx.unbindService(serviceConnection);
+		readAhead.invalidate();
+		// close(2) has already returned, do not hold up the I/O thread that
+		// may serve the next file, e.g. when copying many in
+		var closing = CompletableFuture.runAsync(() -> {
+			try {
+				writeBehind.flush();
+			} catch (IOException e) {
+				// nowhere to report to
+				Log.e("SFTP", "deferred write failed, data may be lost", e);
+			}
+			try (var s = sftp) {
+				s.close(file);
+			} catch (IOException e) {
+			}
+			if (modified) {
+				onModified.run();
+			}
+			ctx.unbindService(serviceConnection);
+		}, executor);
+		onReleased.accept(closing);
 	}
 }
@@ -0,0 +1,189 @@
+package link.xdavidwu.saf.sftp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+/*
+ * Reads of an opened file, with sequential access detection. Once the reader
+ * is found to be sequential, up to depth SSH_FXP_READ requests are kept in
+ * flight ahead of it, and reads are served from completed responses.
+ *
+ * Not thread-safe, expected to be driven by a ProxyFileDescriptorCallback,
+ * which is called on a single thread.
+ */
+public class SftpReadAhead {
+	private static final String TAG = "SftpReadAhead";
+	// consecutive sequential reads required before reading ahead
+	private static final int SEQUENTIAL_THRESHOLD = 2;
+	// window starts small and doubles per consumed chunk, up to depth,
+	// so that probing a header and seeking away does not waste much
+	private static final int INITIAL_WINDOW = 2;
+	private static final int MIN_CHUNK_SIZE = 4096;
+
+	// tailOf is the length of the short read a tail request completes, or 0
+	private record PendingRead(int id, long offset, int length, int tailOf) {}
+
+	private final SftpClient sftp;
+	private final SftpPipeline pipeline;
+	private final SftpClient.Handle file;
+	private final int depth;
+	// lowered to what the server caps reads at, once seen
+	private int chunkSize;
+
+	private final Deque<PendingRead> pending = new ArrayDeque<>();
+	private long expectedOffset = -1;
+	private int sequentialReads;
+	private int window = INITIAL_WINDOW;
+	private long requestOffset;
+	private boolean eof;
+
+	private byte[] buffer;
+	private boolean hasChunk;
+	private long chunkOffset;
+	private int chunkLength;
+
+	public SftpReadAhead(SftpClient sftp, SftpClient.Handle file, int depth,
+			int maxBytesInFlight, int maxChunkSize) {
+		this.sftp = sftp;
+		this.file = file;
+		this.depth = depth;
+		this.chunkSize = depth > 0 ? Math.max(MIN_CHUNK_SIZE,
+			Math.min(maxChunkSize, maxBytesInFlight / depth)) : 0;
+		this.pipeline = depth > 1 ? new SftpPipeline(sftp) : null;
+	}
+
+	public int read(long offset, byte[] data, int size) throws IOException {
+		if (offset == expectedOffset) {
+			sequentialReads++;
+		} else {
+			reset();
+			sequentialReads = 0;
+		}
+
+		var read = pipeline != null && sequentialReads >= SEQUENTIAL_THRESHOLD ?
+			readAhead(offset, data, size) : readDirectly(offset, data, size);
+		expectedOffset = offset + read;
+		return read;
+	}
+
+	// drop everything read ahead, e.g. when the file is written
+	public void invalidate() {
+		reset();
+		expectedOffset = -1;
+	}
+
+	private int readDirectly(long offset, byte[] data, int size)
+			throws IOException {
+		int read = 0;
+		while (read < size) {
+			int r = sftp.read(file, offset + read, data, read, size - read);
+			if (r == -1) {
+				return read;
+			}
+			read += r;
+		}
+		return size;
+	}
+
+	private int readAhead(long offset, byte[] data, int size)
+			throws IOException {
+		if (!hasChunk && pending.isEmpty()) {
+			requestOffset = offset;
+			eof = false;
+		}
+		if (buffer == null) {
+			buffer = new byte[chunkSize];
+		}
+
+		try {
+			int read = 0;
+			while (read < size) {
+				var pos = offset + read;
+				if (hasChunk && pos >= chunkOffset + chunkLength) {
+					hasChunk = false;
+				}
+				if (!hasChunk) {
+					fill();
+					var next = pending.poll();
+					if (next == null) {
+						break;
+					}
+					receive(next);
+					continue;
+				}
+
+				var chunkPos = (int) (pos - chunkOffset);
+				var n = Math.min(size - read, chunkLength - chunkPos);
+				System.arraycopy(buffer, chunkPos, data, read, n);
+				read += n;
+			}
+			// keep the window full while the reader is busy with data
+			fill();
+			return read;
+		} catch (IOException e) {
+			reset();
+			throw e;
+		}
+	}
+
+	private void fill() throws IOException {
+		while (!eof && pending.size() < window) {
+			var id = pipeline.sendRead(file, requestOffset, chunkSize);
+			pending.add(new PendingRead(id, requestOffset, chunkSize, 0));
+			requestOffset += chunkSize;
+		}
+	}
+
+	private void receive(PendingRead read) throws IOException {
+		var n = pipeline.receiveRead(read.id(), buffer, 0);
+		if (n <= 0) {
+			eof = true;
+			drain();
+			return;
+		}
+
+		hasChunk = true;
+		chunkOffset = read.offset();
+		chunkLength = n;
+		if (read.tailOf() > 0 && read.tailOf() < chunkSize) {
+			// not the end of file, but the server capping reads
+			chunkSize = read.tailOf();
+		}
+		if (n < read.length()) {
+			// ask for just the hole, keeping later requests in flight,
+			// if this is the end of file, the tail finds out in one round trip
+			var tailOffset = read.offset() + n;
+			var id = pipeline.sendRead(file, tailOffset, read.length() - n);
+			pending.addFirst(new PendingRead(id, tailOffset,
+				read.length() - n, n));
+		} else {
+			window = Math.min(depth, window * 2);
+		}
+	}
+
+	private void drain() {
+		// responses of abandoned requests have to be consumed anyway, this
+		// costs at most one round trip since they are all in flight
+		while (!pending.isEmpty()) {
+			try {
+				pipeline.discard(pending.poll().id());
+			} catch (IOException e) {
+				Log.w(TAG, "failed to discard read-ahead response", e);
+			}
+		}
+	}
+
+	private void reset() {
+		if (pipeline != null) {
+			drain();
+		}
+		hasChunk = false;
+		eof = false;
+		window = INITIAL_WINDOW;
+	}
+}
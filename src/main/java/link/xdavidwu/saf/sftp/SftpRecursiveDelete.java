@@ -0,0 +1,187 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+/*
+ * Removes a directory tree over a single channel, level by level, keeping
+ * OPENDIR, READDIR, REMOVE and RMDIR requests outstanding instead of paying a
+ * round trip for each.
+ *
+ * Files are removed as soon as they are listed, and directories deepest level
+ * first once everything below them is gone. On failure or cancellation, what
+ * is already removed stays removed.
+ */
+public class SftpRecursiveDelete {
+	private static final String TAG = "SftpRecursiveDelete";
+	// outstanding REMOVE or RMDIR requests
+	private static final int MAX_OUTSTANDING = 64;
+	private static final int MAX_OPEN_DIRS = 16;
+
+	public interface Progress {
+		// number of files and directories removed so far
+		void onProgress(long removed);
+	}
+
+	private final SftpPipeline pipeline;
+	private final CancellationSignal signal;
+	private final Progress progress;
+	private final Deque<Integer> removals = new ArrayDeque<>();
+	// every request not received yet, to be discarded on failure
+	private final Set<Integer> pending = new LinkedHashSet<>();
+	private final Set<byte[]> handles = new LinkedHashSet<>();
+	private long removed;
+
+	public SftpRecursiveDelete(SftpClient sftp, CancellationSignal signal,
+			Progress progress) {
+		this.pipeline = new SftpPipeline(sftp);
+		this.signal = signal;
+		this.progress = progress;
+	}
+
+	private int track(int id) {
+		pending.add(id);
+		return id;
+	}
+
+	private int untrack(int id) {
+		pending.remove(id);
+		return id;
+	}
+
+	public void delete(String path) throws IOException {
+		try {
+			var levels = new ArrayList<List<String>>();
+			List<String> level = List.of(path);
+			while (!level.isEmpty()) {
+				levels.add(level);
+				level = listLevel(level);
+			}
+			drainRemovals(0);
+
+			for (var i = levels.size() - 1; i >= 0; i--) {
+				for (var dir : levels.get(i)) {
+					queueRemoval(pipeline.sendRmdir(dir));
+				}
+				// parents only once children are gone
+				drainRemovals(0);
+			}
+		} finally {
+			cleanup();
+		}
+	}
+
+	// removes files as they are listed, returns subdirectories
+	private List<String> listLevel(List<String> dirs) throws IOException {
+		var subdirs = new ArrayList<String>();
+		for (var start = 0; start < dirs.size(); start += MAX_OPEN_DIRS) {
+			var chunk = dirs.subList(start,
+				Math.min(start + MAX_OPEN_DIRS, dirs.size()));
+			checkCanceled();
+
+			var opens = new ArrayList<Integer>(chunk.size());
+			for (var dir : chunk) {
+				opens.add(track(pipeline.sendOpenDir(dir)));
+			}
+			var reads = new HashMap<Integer, Integer>();
+			var order = new ArrayDeque<Integer>();
+			var dirHandles = new byte[chunk.size()][];
+			for (var i = 0; i < chunk.size(); i++) {
+				dirHandles[i] = pipeline.receiveHandle(untrack(opens.get(i)));
+				handles.add(dirHandles[i]);
+				var id = track(pipeline.sendReadDir(dirHandles[i]));
+				reads.put(id, i);
+				order.add(id);
+			}
+
+			var closes = new ArrayList<Integer>(chunk.size());
+			while (!order.isEmpty()) {
+				var id = order.poll();
+				var i = reads.remove(id);
+				var entries = pipeline.receiveDir(untrack(id));
+				if (entries == null) {
+					handles.remove(dirHandles[i]);
+					closes.add(track(pipeline.sendClose(dirHandles[i])));
+					continue;
+				}
+				// keep listing while the entries are being removed
+				var next = track(pipeline.sendReadDir(dirHandles[i]));
+				reads.put(next, i);
+				order.add(next);
+
+				for (var entry : entries) {
+					var name = entry.getFilename();
+					if (".".equals(name) || "..".equals(name)) {
+						continue;
+					}
+					var child = chunk.get(i) + "/" + name;
+					// not followed, symlinks to directories are removed as is
+					if (entry.getAttributes().isDirectory()) {
+						subdirs.add(child);
+					} else {
+						checkCanceled();
+						queueRemoval(pipeline.sendRemove(child));
+					}
+				}
+			}
+			for (var id : closes) {
+				pipeline.receiveStatus(untrack(id));
+			}
+		}
+		return subdirs;
+	}
+
+	private void queueRemoval(int id) throws IOException {
+		removals.add(track(id));
+		drainRemovals(MAX_OUTSTANDING);
+	}
+
+	private void drainRemovals(int keep) throws IOException {
+		var before = removed;
+		while (removals.size() > keep) {
+			pipeline.receiveStatus(untrack(removals.poll()));
+			removed++;
+		}
+		if (removed != before && progress != null) {
+			progress.onProgress(removed);
+		}
+	}
+
+	private void checkCanceled() {
+		if (signal != null) {
+			signal.throwIfCanceled();
+		}
+	}
+
+	// leaves the channel as clean as it was, for the pool
+	private void cleanup() {
+		for (var id : pending) {
+			try {
+				pipeline.discard(id);
+			} catch (IOException e) {
+				Log.w(TAG, "failed to discard response", e);
+			}
+		}
+		pending.clear();
+		for (var handle : handles) {
+			try {
+				pipeline.discard(pipeline.sendClose(handle));
+			} catch (IOException e) {
+				Log.w(TAG, "failed to close directory", e);
+			}
+		}
+		handles.clear();
+	}
+}
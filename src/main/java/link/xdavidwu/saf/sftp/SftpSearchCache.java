@@ -0,0 +1,140 @@
+package link.xdavidwu.saf.sftp;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/*
+ * Results of recent searches by query, including ones still running in the
+ * background, and the tree as seen by the last complete walk, which answers
+ * any query without going to the server.
+ *
+ * Like listings, results older than ttl are still returned, so that callers
+ * may serve them while searching again in the background. Searches evicted or
+ * superseded are canceled, nobody is asking for them anymore.
+ */
+public class SftpSearchCache {
+	private static final int MAX_SEARCHES = 8;
+
+	public record Match(String documentId, SftpFileAttributes attributes) {
+		public String name() {
+			return documentId.substring(documentId.lastIndexOf('/') + 1);
+		}
+	}
+
+	public static class Search {
+		private final List<Match> matches = new ArrayList<>();
+		private final long time = SystemClock.elapsedRealtime();
+		private volatile boolean complete;
+		private volatile boolean canceled;
+		private volatile String info;
+
+		public synchronized void add(List<Match> found) {
+			matches.addAll(found);
+		}
+
+		public synchronized List<Match> matches() {
+			return new ArrayList<>(matches);
+		}
+
+		public boolean isComplete() {
+			return complete;
+		}
+
+		public void complete(String info) {
+			this.info = info;
+			complete = true;
+		}
+
+		public boolean isCanceled() {
+			return canceled;
+		}
+
+		public void cancel() {
+			canceled = true;
+		}
+
+		// e.g. why results may be partial
+		public String info() {
+			return info;
+		}
+	}
+
+	private record Tree(List<Match> entries, long time) {}
+
+	private final Duration ttl;
+	private final LruCache<String, Search> searches =
+			new LruCache<>(MAX_SEARCHES) {
+		@Override
+		protected void entryRemoved(boolean evicted, String key,
+				Search oldValue, Search newValue) {
+			oldValue.cancel();
+		}
+	};
+	private volatile Tree tree;
+	// e.g. no shell access
+	private volatile boolean findUnavailable;
+
+	public SftpSearchCache(Duration ttl) {
+		this.ttl = ttl;
+	}
+
+	public static boolean matches(String name, String query) {
+		return name.toLowerCase(Locale.ROOT)
+			.contains(query.toLowerCase(Locale.ROOT));
+	}
+
+	private static String key(String query) {
+		return query.toLowerCase(Locale.ROOT);
+	}
+
+	public Search get(String query) {
+		return searches.get(key(query));
+	}
+
+	public boolean isFresh(Search search) {
+		return SystemClock.elapsedRealtime() - search.time < ttl.toMillis();
+	}
+
+	public Search begin(String query) {
+		var search = new Search();
+		searches.put(key(query), search);
+		return search;
+	}
+
+	// null if there is no fresh complete walk
+	public List<Match> searchTree(String query) {
+		var t = tree;
+		if (t == null ||
+				SystemClock.elapsedRealtime() - t.time() >= ttl.toMillis()) {
+			return null;
+		}
+		return t.entries().stream()
+			.filter(m -> matches(m.name(), query))
+			.collect(Collectors.toList());
+	}
+
+	// entries must not be modified afterwards
+	public void putTree(List<Match> entries) {
+		tree = new Tree(entries, SystemClock.elapsedRealtime());
+	}
+
+	public boolean isFindUnavailable() {
+		return findUnavailable;
+	}
+
+	public void setFindUnavailable() {
+		findUnavailable = true;
+	}
+
+	// anything may have been added, removed, or changed
+	public void invalidate() {
+		tree = null;
+		searches.evictAll();
+	}
+}
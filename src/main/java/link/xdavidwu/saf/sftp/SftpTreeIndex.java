@@ -0,0 +1,272 @@
+package link.xdavidwu.saf.sftp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.common.SftpHelper;
+
+/*
+ * Names and attributes of the remote tree persisted in SQLite, as seen by
+ * complete listings, for recents and search of names without walking the
+ * server.
+ *
+ * Rows are grouped by root, a qualified path of the root, and replaced per
+ * directory. Knowledge may be stale, or missing for directories never listed.
+ *
+ * Names are indexed by trigrams for search, where SQLite is recent enough
+ * (3.34, e.g. Android 14), otherwise, or for queries too short to have a
+ * trigram, names are scanned.
+ */
+public class SftpTreeIndex extends SQLiteOpenHelper {
+	private static final String TAG = "SftpTreeIndex";
+	private static final int VERSION = 3;
+
+	private volatile boolean hasTrigrams;
+
+	public SftpTreeIndex(Context context, String name) {
+		super(context, name, null, VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE entries (root TEXT, document_id TEXT, " +
+			"parent_id TEXT, name TEXT, name_lower TEXT, size INTEGER, " +
+			"mtime INTEGER, mode INTEGER, uid INTEGER, gid INTEGER, " +
+			"stat_mode INTEGER, " +
+			"PRIMARY KEY (root, document_id))");
+		db.execSQL("CREATE INDEX entries_parent ON entries (root, parent_id)");
+		db.execSQL("CREATE INDEX entries_mtime ON entries (root, mtime)");
+		// directories listed completely, and when
+		db.execSQL("CREATE TABLE directories (root TEXT, document_id TEXT, " +
+			"time INTEGER, PRIMARY KEY (root, document_id))");
+		// completed crawls
+		db.execSQL("CREATE TABLE crawls (root TEXT PRIMARY KEY, time INTEGER)");
+		try {
+			// kept in sync with entries by triggers
+			db.execSQL("CREATE VIRTUAL TABLE names USING fts5(name_lower, " +
+				"content='entries', content_rowid='rowid', " +
+				"tokenize='trigram')");
+			db.execSQL("CREATE TRIGGER entries_insert AFTER INSERT ON " +
+				"entries BEGIN INSERT INTO names(rowid, name_lower) " +
+				"VALUES (new.rowid, new.name_lower); END");
+			db.execSQL("CREATE TRIGGER entries_delete AFTER DELETE ON " +
+				"entries BEGIN INSERT INTO names(names, rowid, name_lower) " +
+				"VALUES ('delete', old.rowid, old.name_lower); END");
+		} catch (SQLiteException e) {
+			Log.i(TAG, "no trigram tokenizer, names are scanned", e);
+			db.execSQL("DROP TABLE IF EXISTS names");
+		}
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		try (var c = db.rawQuery("SELECT 1 FROM sqlite_master WHERE " +
+				"type = 'table' AND name = 'names'", null)) {
+			hasTrigrams = c.moveToFirst();
+		}
+	}
+
+	// a cache, simply rebuilt
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// 1: fts4 names, matched by word prefixes
+		// 2: names scanned
+		// 3: fts5 trigrams of names, if supported
+		db.execSQL("DROP TABLE IF EXISTS names");
+		db.execSQL("DROP TABLE IF EXISTS entries");
+		db.execSQL("DROP TABLE IF EXISTS directories");
+		db.execSQL("DROP TABLE IF EXISTS crawls");
+		onCreate(db);
+	}
+
+	private static SftpSearchCache.Match toMatch(Cursor c) {
+		var lstat = new SftpClient.Attributes();
+		lstat.setSize(c.getLong(1));
+		lstat.setModifyTime(FileTime.fromMillis(c.getLong(2)));
+		lstat.setPermissions(c.getInt(3));
+		lstat.setType(SftpHelper.permissionsToFileType(c.getInt(3)));
+		lstat.owner(c.getInt(4), c.getInt(5));
+		if (c.getInt(6) == c.getInt(3)) {
+			return new SftpSearchCache.Match(c.getString(0),
+				new SftpFileAttributes(lstat));
+		}
+		var stat = new SftpClient.Attributes();
+		stat.setPermissions(c.getInt(6));
+		stat.setType(SftpHelper.permissionsToFileType(c.getInt(6)));
+		stat.owner(c.getInt(4), c.getInt(5));
+		return new SftpSearchCache.Match(c.getString(0),
+			new SftpFileAttributes(lstat, stat, null));
+	}
+
+	private static final String[] ENTRY_COLUMNS = {"document_id", "size",
+		"mtime", "mode", "uid", "gid", "stat_mode"};
+	private static final String TRIGRAM_COLUMNS = "e.document_id, e.size, " +
+		"e.mtime, e.mode, e.uid, e.gid, e.stat_mode";
+
+	private static List<SftpSearchCache.Match> toMatches(Cursor c) {
+		var matches = new ArrayList<SftpSearchCache.Match>(c.getCount());
+		while (c.moveToNext()) {
+			matches.add(toMatch(c));
+		}
+		return matches;
+	}
+
+	// entries are keyed by filename
+	public void replaceChildren(String root, String parentDocumentId,
+			Map<String, SftpFileAttributes> entries, long time) {
+		try {
+			var db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				db.delete("entries", "root = ? AND parent_id = ?",
+					new String[]{root, parentDocumentId});
+				var values = new ContentValues();
+				entries.forEach((name, attrs) -> {
+					var lstat = attrs.lstat();
+					values.put("root", root);
+					values.put("document_id", parentDocumentId + "/" + name);
+					values.put("parent_id", parentDocumentId);
+					values.put("name", name);
+					// SQLite lower() folds only ASCII
+					values.put("name_lower", name.toLowerCase(Locale.ROOT));
+					values.put("size", lstat.getSize());
+					values.put("mtime", lstat.getModifyTime().toMillis());
+					values.put("mode", lstat.getPermissions());
+					values.put("uid", lstat.getUserId());
+					values.put("gid", lstat.getGroupId());
+					values.put("stat_mode", attrs.stat().getPermissions());
+					db.insert("entries", null, values);
+				});
+				var directory = new ContentValues();
+				directory.put("root", root);
+				directory.put("document_id", parentDocumentId);
+				directory.put("time", time);
+				db.insertWithOnConflict("directories", null, directory,
+					SQLiteDatabase.CONFLICT_REPLACE);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot update tree index", e);
+		}
+	}
+
+	// including descendants
+	public void remove(String root, String documentId) {
+		try {
+			var db = getWritableDatabase();
+			var args = new String[]{root, documentId, documentId + "/"};
+			var where = "root = ? AND (document_id = ? OR " +
+				"substr(document_id, 1, length(?3)) = ?3)";
+			db.delete("entries", where, args);
+			db.delete("directories", where, args);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot update tree index", e);
+		}
+	}
+
+	// 0 if never listed
+	public long getListedTime(String root, String documentId) {
+		try (var c = getReadableDatabase().query("directories",
+				new String[]{"time"}, "root = ? AND document_id = ?",
+				new String[]{root, documentId}, null, null, null)) {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot read tree index", e);
+			return 0;
+		}
+	}
+
+	// 0 if never crawled completely
+	public long getCrawledTime(String root) {
+		try (var c = getReadableDatabase().query("crawls",
+				new String[]{"time"}, "root = ?", new String[]{root},
+				null, null, null)) {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot read tree index", e);
+			return 0;
+		}
+	}
+
+	public void setCrawledTime(String root, long time) {
+		var values = new ContentValues();
+		values.put("root", root);
+		values.put("time", time);
+		try {
+			getWritableDatabase().insertWithOnConflict("crawls", null, values,
+				SQLiteDatabase.CONFLICT_REPLACE);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot update tree index", e);
+		}
+	}
+
+	public List<String> getDirectories(String root, String parentDocumentId) {
+		var directories = new ArrayList<String>();
+		// S_IFMT, S_IFDIR, symlinks are not followed
+		try (var c = getReadableDatabase().query("entries",
+				new String[]{"document_id"},
+				"root = ? AND parent_id = ? AND (mode & 61440) = 16384",
+				new String[]{root, parentDocumentId}, null, null, null)) {
+			while (c.moveToNext()) {
+				directories.add(c.getString(0));
+			}
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot read tree index", e);
+		}
+		return directories;
+	}
+
+	// regular files (S_IFREG), most recently modified first
+	public List<SftpSearchCache.Match> getRecent(String root, int limit) {
+		try (var c = getReadableDatabase().query("entries", ENTRY_COLUMNS,
+				"root = ? AND (stat_mode & 61440) = 32768",
+				new String[]{root}, null, null, "mtime DESC",
+				String.valueOf(limit))) {
+			return toMatches(c);
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot read tree index", e);
+			return List.of();
+		}
+	}
+
+	// by substrings of names, ignoring case, as SftpSearchCache.matches()
+	public List<SftpSearchCache.Match> search(String root, String query, int limit) {
+		var lower = query.toLowerCase(Locale.ROOT);
+		try {
+			var db = getReadableDatabase();
+			if (hasTrigrams && lower.codePointCount(0, lower.length()) >= 3) {
+				// a phrase of trigrams, i.e. the query as a substring
+				var phrase = '"' + lower.replace("\"", "\"\"") + '"';
+				try (var c = db.rawQuery("SELECT " + TRIGRAM_COLUMNS +
+						" FROM names JOIN entries e ON e.rowid = names.rowid " +
+						"WHERE names MATCH ? AND e.root = ? LIMIT ?",
+						new String[]{phrase, root, String.valueOf(limit)})) {
+					return toMatches(c);
+				}
+			}
+			try (var c = db.query("entries", ENTRY_COLUMNS,
+					"root = ? AND instr(name_lower, ?) > 0",
+					new String[]{root, lower},
+					null, null, null, String.valueOf(limit))) {
+				return toMatches(c);
+			}
+		} catch (SQLiteException e) {
+			Log.w(TAG, "cannot read tree index", e);
+			return List.of();
+		}
+	}
+}
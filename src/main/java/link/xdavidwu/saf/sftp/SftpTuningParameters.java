@@ -0,0 +1,29 @@
+package link.xdavidwu.saf.sftp;
+
+import android.content.SharedPreferences;
+
+// client-side knobs on how we talk to the server, per connection
+public record SftpTuningParameters(int readAheadDepth,
+		int readAheadMaxBytes, long writeBehindMaxBytes, int maxChannels,
+		int directoryCacheTtlSeconds, int directoryCacheMaxEntries,
+		int attributeCacheTtlSeconds, int attributeCacheMaxEntries,
+		int listingPageSize, int headerPrefetchBytes, int ioThreads) {
+
+	public static SftpTuningParameters fromSharedPreferences(
+			SharedPreferences sp) {
+		var ioThreads = Integer.parseInt(sp.getString("io_threads", "0"));
+		return new SftpTuningParameters(
+			Integer.parseInt(sp.getString("readahead_depth", "8")),
+			Integer.parseInt(sp.getString("readahead_max_kib", "2048")) * 1024,
+			Long.parseLong(sp.getString("writebehind_max_kib", "2048")) * 1024,
+			Integer.parseInt(sp.getString("max_channels", "8")),
+			Integer.parseInt(sp.getString("dir_cache_ttl", "30")),
+			Integer.parseInt(sp.getString("dir_cache_entries", "100000")),
+			Integer.parseInt(sp.getString("attr_cache_ttl", "10")),
+			Integer.parseInt(sp.getString("attr_cache_entries", "10000")),
+			Integer.parseInt(sp.getString("listing_page_size", "1000")),
+			Integer.parseInt(sp.getString("header_prefetch_kib", "64")) * 1024,
+			ioThreads > 0 ? ioThreads : Runtime.getRuntime().availableProcessors()
+		);
+	}
+}
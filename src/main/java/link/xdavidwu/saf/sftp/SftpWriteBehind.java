@@ -0,0 +1,94 @@
+package link.xdavidwu.saf.sftp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.sshd.sftp.client.SftpClient;
+
+/*
+ * Writes to an opened file. With maxBufferedBytes > 0, writes are sent without
+ * waiting for acknowledgements, and errors of them are deferred to the next
+ * write or flush. Once an error is deferred, it sticks.
+ *
+ * Not thread-safe, expected to be driven by a ProxyFileDescriptorCallback,
+ * which is called on a single thread.
+ */
+public class SftpWriteBehind {
+	private static final String TAG = "SftpWriteBehind";
+
+	private record PendingWrite(int id, int length) {}
+
+	private final SftpClient sftp;
+	private final SftpPipeline pipeline;
+	private final SftpClient.Handle file;
+	private final long maxBufferedBytes;
+	private final int maxChunkSize;
+
+	private final Deque<PendingWrite> pending = new ArrayDeque<>();
+	private long buffered;
+	private IOException deferred;
+
+	public SftpWriteBehind(SftpClient sftp, SftpClient.Handle file,
+			long maxBufferedBytes, int maxChunkSize) {
+		this.sftp = sftp;
+		this.file = file;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.maxChunkSize = maxChunkSize;
+		this.pipeline = maxBufferedBytes > 0 ? new SftpPipeline(sftp) : null;
+	}
+
+	public void write(long offset, byte[] data, int size) throws IOException {
+		throwDeferred();
+		for (int written = 0; written < size;) {
+			var n = Math.min(size - written, maxChunkSize);
+			if (pipeline == null) {
+				sftp.write(file, offset + written, data, written, n);
+			} else {
+				while (!pending.isEmpty() && buffered + n > maxBufferedBytes) {
+					receiveOldest();
+				}
+				var id = pipeline.sendWrite(file, offset + written, data,
+					written, n);
+				pending.add(new PendingWrite(id, n));
+				buffered += n;
+			}
+			written += n;
+		}
+		throwDeferred();
+	}
+
+	// wait for all outstanding writes, errors stay deferred
+	public void drain() {
+		while (!pending.isEmpty()) {
+			receiveOldest();
+		}
+	}
+
+	// wait for all outstanding writes, and surface any error
+	public void flush() throws IOException {
+		drain();
+		throwDeferred();
+	}
+
+	private void receiveOldest() {
+		var write = pending.poll();
+		buffered -= write.length();
+		try {
+			pipeline.receiveStatus(write.id());
+		} catch (IOException e) {
+			Log.w(TAG, "deferred write failed", e);
+			if (deferred == null) {
+				deferred = e;
+			}
+		}
+	}
+
+	private void throwDeferred() throws IOException {
+		if (deferred != null) {
+			throw deferred;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package link.xdavidwu.saf.thumbnails;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Point;
+import android.media.ExifInterface;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.IOException;
+
+/*
+ * Decodes images subsampled to just cover sizeHint, after reading only the
+ * headers for dimensions, so that memory and bytes read are proportional to
+ * the thumbnail instead of the image.
+ */
+public class DownscaledImageThumbnailsProvider
+		extends AbstractBitmapThumbnailsProvider {
+	private static final String TAG = "DownscaledImageThumbnailsProvider";
+
+	@Override
+	public boolean isSupportedMimeType(String mimeType) {
+		return mimeType.startsWith("image/");
+	}
+
+	private static void rewind(ParcelFileDescriptor fd) throws IOException {
+		try {
+			Os.lseek(fd.getFileDescriptor(), 0, OsConstants.SEEK_SET);
+		} catch (ErrnoException e) {
+			throw e.rethrowAsIOException();
+		}
+	}
+
+	private static Bitmap decode(ParcelFileDescriptor fd,
+			BitmapFactory.Options opts) throws IOException {
+		rewind(fd);
+		return BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor(),
+			null, opts);
+	}
+
+	private static int getRotation(ParcelFileDescriptor fd) {
+		try {
+			rewind(fd);
+			var exif = new ExifInterface(fd.getFileDescriptor());
+			// mirrored ones are rare enough to be left mirrored
+			return switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+					ExifInterface.ORIENTATION_NORMAL)) {
+			case ExifInterface.ORIENTATION_ROTATE_90 -> 90;
+			case ExifInterface.ORIENTATION_ROTATE_180 -> 180;
+			case ExifInterface.ORIENTATION_ROTATE_270 -> 270;
+			default -> 0;
+			};
+		} catch (IOException e) {
+			// e.g. unsupported format, treat as upright
+			return 0;
+		}
+	}
+
+	@Override
+	public Bitmap getThumbnailBitmap(ParcelFileDescriptor fd,
+			Point sizeHint, CancellationSignal signal) throws IOException {
+		var opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		decode(fd, opts);
+		if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+			return null;
+		}
+		var rotation = getRotation(fd);
+		var rotated = rotation == 90 || rotation == 270;
+		var width = rotated ? opts.outHeight : opts.outWidth;
+		var height = rotated ? opts.outWidth : opts.outHeight;
+
+		// largest power of 2 that still covers sizeHint
+		var sampleSize = 1;
+		while (width / (sampleSize * 2) >= sizeHint.x &&
+				height / (sampleSize * 2) >= sizeHint.y) {
+			sampleSize *= 2;
+		}
+		if (signal != null) {
+			signal.throwIfCanceled();
+		}
+
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = sampleSize;
+		var bitmap = decode(fd, opts);
+		if (bitmap == null) {
+			Log.i(TAG, "cannot decode image");
+			return null;
+		}
+		fd.close();
+
+		// scale the rest of the way and rotate in one go
+		var scale = Math.min(1, Math.max(
+			((double) sizeHint.x) / (width / sampleSize),
+			((double) sizeHint.y) / (height / sampleSize)));
+		if (scale == 1 && rotation == 0) {
+			return bitmap;
+		}
+		var matrix = new Matrix();
+		matrix.postScale((float) scale, (float) scale);
+		matrix.postRotate(rotation);
+		var result = Bitmap.createBitmap(bitmap, 0, 0,
+			bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+		if (result != bitmap) {
+			bitmap.recycle();
+		}
+		return result;
+	}
+}
@@ -6,10 +6,27 @@ import android.media.ExifInterface;
 import android.os.Build;
 import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
+import android.util.Log;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import link.xdavidwu.saf.PrefetchingFileSource;
 
 public class ExifThumbnailsProvider implements ThumbnailsProvider {
+	private static final String TAG = "ExifThumbnailsProvider";
+
+	private final int prefetchBytes;
+
+	public ExifThumbnailsProvider(int prefetchBytes) {
+		this.prefetchBytes = prefetchBytes;
+	}
+
+	public ExifThumbnailsProvider() {
+		this(PrefetchingFileSource.DEFAULT_PREFETCH_BYTES);
+	}
 
 	@Override
 	public boolean isSupportedMimeType(String mimeType) {
@@ -23,11 +40,38 @@ public class ExifThumbnailsProvider implements ThumbnailsProvider {
 	@Override
 	public AssetFileDescriptor getThumbnail(ParcelFileDescriptor fd,
 			Point sizeHint, CancellationSignal signal) throws IOException {
-		var exif = new ExifInterface(fd.getFileDescriptor());
+		// parse from a few large reads instead of many small ones
+		var source = new PrefetchingFileSource(fd.getFileDescriptor(),
+			prefetchBytes);
+		var exif = new ExifInterface(source.newInputStream());
 		var range = exif.getThumbnailRange();
 		if (range == null) {
 			return null;
 		}
-		return new AssetFileDescriptor(fd, range[0], range[1]);
+
+		// likely within what is already read
+		var thumbnail = new byte[(int) range[1]];
+		var read = 0;
+		while (read < thumbnail.length) {
+			var n = source.readAt(range[0] + read, thumbnail, read,
+				thumbnail.length - read);
+			if (n == -1) {
+				throw new EOFException("thumbnail truncated");
+			}
+			read += n;
+		}
+		fd.close();
+
+		var pipe = ParcelFileDescriptor.createReliablePipe();
+		CompletableFuture.runAsync(() -> {
+			try {
+				try (var o = new AutoCloseOutputStream(pipe[1])) {
+					o.write(thumbnail);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "exception on pipe", e);
+			}
+		});
+		return new AssetFileDescriptor(pipe[0], 0, thumbnail.length);
 	}
 }
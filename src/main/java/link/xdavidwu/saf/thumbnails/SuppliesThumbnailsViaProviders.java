@@ -13,14 +13,22 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Objects;
 
+import link.xdavidwu.saf.FileVersion;
+import link.xdavidwu.saf.PrefetchingFileSource;
+
 public interface SuppliesThumbnailsViaProviders {
 	static final String TAG = "SuppliesThumbnailsViaProviders";
-	static final List<ThumbnailsProvider> DEFAULT_PROVIDERS = List.of(
-		new ExifThumbnailsProvider(),
-		new EmbeddedPictureThumbnailsProvider(),
-		new FrameThumbnailsProvider(),
-		new PdfThumbnailsProvider(),
-		new ImageSelfThumbnailsProvider());
+	static final List<ThumbnailsProvider> DEFAULT_PROVIDERS = defaultProviders(
+		PrefetchingFileSource.DEFAULT_PREFETCH_BYTES);
+
+	static List<ThumbnailsProvider> defaultProviders(int headerPrefetchBytes) {
+		return List.of(
+			new ExifThumbnailsProvider(headerPrefetchBytes),
+			new EmbeddedPictureThumbnailsProvider(),
+			new FrameThumbnailsProvider(),
+			new PdfThumbnailsProvider(),
+			new DownscaledImageThumbnailsProvider());
+	}
 
 	// forwarded from DocumentsProvider
 	ParcelFileDescriptor openDocument(String documentId, String mode,
@@ -31,6 +39,25 @@ public interface SuppliesThumbnailsViaProviders {
 	String getDocumentType(String documentId)
 		throws AuthenticationRequiredException, FileNotFoundException;
 
+	// caching is enabled if both of these are non-null
+	default ThumbnailCache getThumbnailCache() {
+		return null;
+	}
+
+	default FileVersion getFileVersion(String documentId)
+			throws AuthenticationRequiredException, FileNotFoundException {
+		return null;
+	}
+
+	// null on miss, or if caching is not enabled
+	default AssetFileDescriptor openCachedDocumentThumbnail(String documentId,
+			Point sizeHint)
+			throws AuthenticationRequiredException, FileNotFoundException {
+		var cache = getThumbnailCache();
+		var version = cache != null ? getFileVersion(documentId) : null;
+		return version != null ? cache.get(version, sizeHint) : null;
+	}
+
 	default List<ThumbnailsProvider> getThumbnailsProviders() {
 		return DEFAULT_PROVIDERS;
 	}
@@ -51,6 +78,15 @@ public interface SuppliesThumbnailsViaProviders {
 			return null;
 		}
 
+		var cache = getThumbnailCache();
+		var version = cache != null ? getFileVersion(documentId) : null;
+		if (version != null) {
+			var cached = cache.get(version, sizeHint);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
 		var fd = openDocument(documentId, "r", signal);
 		try {
 			var res = getThumbnailsProviders().stream()
@@ -72,6 +108,14 @@ public interface SuppliesThumbnailsViaProviders {
 				}
 				throw new FileNotFoundException();
 			}
+			if (version != null) {
+				try {
+					return cache.put(version, sizeHint, res.get());
+				} catch (IOException e) {
+					Log.w(TAG, "cannot read thumbnail", e);
+					throw new FileNotFoundException();
+				}
+			}
 			return res.get();
 		} catch (OperationCanceledException oce) {
 			try {
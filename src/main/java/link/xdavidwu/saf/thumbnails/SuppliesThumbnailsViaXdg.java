@@ -5,56 +5,109 @@ import android.content.res.AssetFileDescriptor;
 import android.graphics.Point;
 import android.os.Build;
 import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract.Document;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 import android.util.LruCache;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import link.xdavidwu.saf.FileVersion;
 import link.xdavidwu.saf.UriAsDocumentId;
 
+/*
+ * Thumbnails from repositories of XDG thumbnail spec, i.e. shared ones in
+ * .sh_thumbnails in the directory of the file, then the personal one, if
+ * provided. Ones with Thumb::MTime not matching the file are skipped as stale,
+ * if getFileVersion() knows the file.
+ *
+ * Whether a directory has .sh_thumbnails is remembered for a while if told via
+ * setHasXdgThumbnails(), e.g. from listings, to skip lookups in ones without.
+ * Lookups that miss also find out and remember whether the directory of that
+ * size exists, so that one miss costs a stat, and later ones nothing.
+ */
 public interface SuppliesThumbnailsViaXdg extends UriAsDocumentId {
-	// TODO consider sized ones
-	static final String XDG_THUMBNAIL_NORMAL_DIR = ".sh_thumbnails/normal/";
+	static final String TAG = "SuppliesThumbnailsViaXdg";
+	static final String XDG_SHARED_THUMBNAIL_DIR = ".sh_thumbnails";
+	// by edge length, ascending
+	static final int[] XDG_THUMBNAIL_SIZES = {128, 256, 512};
 	static final String[] XDG_THUMBNAIL_DIRS = {
-		XDG_THUMBNAIL_NORMAL_DIR
+		"normal", "large", "x-large"
 	};
+	static final Duration XDG_DIRECTORY_KNOWLEDGE_TTL = Duration.ofMinutes(5);
+	static final byte[] PNG_SIGNATURE = {
+		(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+	};
+	static final String XDG_MTIME_KEY = "Thumb::MTime";
+	// text chunks are expected before image data, give up after that many
+	static final int MAX_PNG_CHUNKS = 32;
+	static final int MAX_PNG_TEXT_LENGTH = 4096;
 
-	static LruCache<String, String> xdgThumbnailNameCache =
-			new LruCache<String, String>(1 * 1024 * 1024) {
-		private static MessageDigest md5;
-		static {
-			try {
-				md5 = MessageDigest.getInstance("MD5");
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
-			}
+	record XdgDirectoryKnowledge(boolean hasThumbnails, long time) {}
+
+	// by documentId of directory, or of its directory of a size
+	static LruCache<String, XdgDirectoryKnowledge> xdgDirectoryCache =
+		new LruCache<>(4096);
+
+	default String getXDGThumbnailFile(String name) {
+		return XdgThumbnailNames.forSharedRepository(name);
+	}
+
+	default void setHasXdgThumbnails(String directoryDocumentId,
+			boolean hasThumbnails) {
+		xdgDirectoryCache.put(directoryDocumentId, new XdgDirectoryKnowledge(
+			hasThumbnails, SystemClock.elapsedRealtime()));
+	}
+
+	// null if unknown
+	default Boolean hasXdgThumbnails(String directoryDocumentId) {
+		var knowledge = xdgDirectoryCache.get(directoryDocumentId);
+		if (knowledge == null) {
+			return null;
 		}
-		private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
-
-		// String.hashCode should be faster than md5
-		@Override
-		protected String create(String key) {
-			// 16 bytes
-			var digest = md5.digest(("./" + key).getBytes());
-			var hex = new char[32];
-			for (int i = 0; i < 16; i++) {
-				hex[i * 2] = HEX_DIGITS[(digest[i] & 0xf0) >>> 4];
-				hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
-			}
-			return String.valueOf(hex);
+		if (SystemClock.elapsedRealtime() - knowledge.time() >=
+				XDG_DIRECTORY_KNOWLEDGE_TTL.toMillis()) {
+			xdgDirectoryCache.remove(directoryDocumentId);
+			return null;
 		}
+		return knowledge.hasThumbnails();
+	}
 
-		@Override
-		protected int sizeOf(String key, String value) {
-			return 32;
+	// smallest one covering sizeHint first, then larger ones, then smaller
+	// ones as a last resort
+	private static List<String> getXdgThumbnailDirs(Point sizeHint) {
+		var size = Math.max(sizeHint.x, sizeHint.y);
+		var covering = 0;
+		while (covering < XDG_THUMBNAIL_SIZES.length &&
+				XDG_THUMBNAIL_SIZES[covering] < size) {
+			covering++;
 		}
-	};
+		var dirs = new ArrayList<String>(XDG_THUMBNAIL_DIRS.length);
+		for (var i = covering; i < XDG_THUMBNAIL_DIRS.length; i++) {
+			dirs.add(XDG_THUMBNAIL_DIRS[i]);
+		}
+		for (var i = covering - 1; i >= 0; i--) {
+			dirs.add(XDG_THUMBNAIL_DIRS[i]);
+		}
+		return dirs;
+	}
 
-	default String getXDGThumbnailFile(String name) {
-		return xdgThumbnailNameCache.get(name) + ".png";
+	// null if unknown, thumbnails are then taken without checking Thumb::MTime
+	default FileVersion getFileVersion(String documentId)
+			throws AuthenticationRequiredException, FileNotFoundException {
+		return null;
 	}
 
 	// forwarded from DocumentsProvider
@@ -62,17 +115,139 @@ public interface SuppliesThumbnailsViaXdg extends UriAsDocumentId {
 		CancellationSignal signal)
 			throws AuthenticationRequiredException, FileNotFoundException;
 
-	default AssetFileDescriptor openDocumentThumbnailViaXdg(
-			String documentId, Point sizeHint, CancellationSignal signal)
-			throws FileNotFoundException {
-		var path = pathFromDocumentId(documentId);
-		var filename = basename(path);
-		var thumbnailDocumentId = toParentDocumentId(documentId) + '/' +
-			XDG_THUMBNAIL_NORMAL_DIR + getXDGThumbnailFile(filename);
+	// forwarded from DocumentsProvider
+	String getDocumentType(String documentId)
+		throws AuthenticationRequiredException, FileNotFoundException;
+
+	private static void preadFully(FileDescriptor fd, byte[] b, long position)
+			throws IOException {
 		try {
-			var fd = openDocument(thumbnailDocumentId, "r", signal);
+			for (var off = 0; off < b.length;) {
+				var n = Os.pread(fd, b, off, b.length - off, position + off);
+				if (n == 0) {
+					throw new IOException("unexpected EOF");
+				}
+				off += n;
+			}
+		} catch (ErrnoException e) {
+			throw e.rethrowAsIOException();
+		}
+	}
+
+	// in seconds, null if absent
+	private static Long readXdgMTime(ParcelFileDescriptor fd)
+			throws IOException {
+		var signature = new byte[PNG_SIGNATURE.length];
+		preadFully(fd.getFileDescriptor(), signature, 0);
+		if (!Arrays.equals(signature, PNG_SIGNATURE)) {
+			throw new IOException("not a png");
+		}
+		var position = (long) signature.length;
+		var header = new byte[8];
+		for (var i = 0; i < MAX_PNG_CHUNKS; i++) {
+			preadFully(fd.getFileDescriptor(), header, position);
+			var length = ByteBuffer.wrap(header).getInt() & 0xffffffffL;
+			var type = new String(header, 4, 4, StandardCharsets.US_ASCII);
+			if ("IDAT".equals(type) || "IEND".equals(type)) {
+				break;
+			}
+			if ("tEXt".equals(type) && length <= MAX_PNG_TEXT_LENGTH) {
+				var data = new byte[(int) length];
+				preadFully(fd.getFileDescriptor(), data, position + header.length);
+				var text = new String(data, StandardCharsets.ISO_8859_1);
+				var separator = text.indexOf('\0');
+				if (separator != -1 &&
+						XDG_MTIME_KEY.equals(text.substring(0, separator))) {
+					// some writers add fractions
+					var value = text.substring(separator + 1).strip()
+						.split("\\.")[0];
+					try {
+						return Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						return null;
+					}
+				}
+			}
+			// with CRC
+			position += header.length + length + 4;
+		}
+		return null;
+	}
+
+	// null if missing, or stale against version
+	private AssetFileDescriptor openXdgThumbnail(String thumbnailDocumentId,
+			FileVersion version, CancellationSignal signal) {
+		ParcelFileDescriptor fd = null;
+		try {
+			fd = openDocument(thumbnailDocumentId, "r", signal);
+			if (version != null) {
+				var mtime = readXdgMTime(fd);
+				if (mtime == null || mtime != version.mtime() / 1000) {
+					Log.v(TAG, "stale thumbnail at " + thumbnailDocumentId);
+					fd.close();
+					return null;
+				}
+			}
 			return new AssetFileDescriptor(fd, 0, fd.getStatSize());
+		} catch (OperationCanceledException e) {
+			closeQuietly(fd);
+			throw e;
 		} catch (Exception e) {
+			closeQuietly(fd);
+			Log.v(TAG, "no thumbnail at " + thumbnailDocumentId);
+		}
+		return null;
+	}
+
+	private static void closeQuietly(ParcelFileDescriptor fd) {
+		if (fd != null) {
+			try {
+				fd.close();
+			} catch (IOException e) {
+				Log.w(TAG, "cannot close thumbnail", e);
+			}
+		}
+	}
+
+	private boolean isXdgDirectory(String documentId) {
+		var known = hasXdgThumbnails(documentId);
+		if (known != null) {
+			return known;
+		}
+		var exists = false;
+		try {
+			exists = Document.MIME_TYPE_DIR.equals(getDocumentType(documentId));
+		} catch (FileNotFoundException e) {}
+		setHasXdgThumbnails(documentId, exists);
+		return exists;
+	}
+
+	default AssetFileDescriptor openDocumentThumbnailViaXdg(
+			String documentId, Point sizeHint, CancellationSignal signal)
+			throws FileNotFoundException {
+		var dirs = getXdgThumbnailDirs(sizeHint);
+		var version = getFileVersion(documentId);
+		var parentDocumentId = toParentDocumentId(documentId);
+		if (!Boolean.FALSE.equals(hasXdgThumbnails(parentDocumentId))) {
+			var filename = getXDGThumbnailFile(
+				basename(pathFromDocumentId(documentId)));
+			var anySize = false;
+			for (var dir : dirs) {
+				var sizeDocumentId = parentDocumentId + '/' +
+					XDG_SHARED_THUMBNAIL_DIR + '/' + dir;
+				if (Boolean.FALSE.equals(hasXdgThumbnails(sizeDocumentId))) {
+					continue;
+				}
+				var thumbnail = openXdgThumbnail(
+					sizeDocumentId + '/' + filename, version, signal);
+				if (thumbnail != null) {
+					return thumbnail;
+				}
+				anySize |= isXdgDirectory(sizeDocumentId);
+			}
+			if (!anySize) {
+				setHasXdgThumbnails(parentDocumentId, false);
+			}
 		}
 
 		throw new FileNotFoundException();
@@ -0,0 +1,205 @@
+package link.xdavidwu.saf.thumbnails;
+
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Point;
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+
+import link.xdavidwu.saf.Digests;
+import link.xdavidwu.saf.FileVersion;
+
+/*
+ * Thumbnails persisted in a directory, keyed by file version and size bucket,
+ * evicting least recently used ones beyond a byte budget.
+ *
+ * Recency survives restarts via mtime of cached files.
+ */
+public class ThumbnailCache {
+	private static final String TAG = "ThumbnailCache";
+	private static final String TEMP_SUFFIX = ".tmp";
+	// XDG normal size
+	private static final int MIN_BUCKET = 128;
+	// larger thumbnails are served but not retained
+	private static final int MAX_ENTRY_FRACTION = 16;
+
+	private final File dir;
+	private long maxBytes;
+	private long bytes;
+	// file name to size, in access order
+	private LinkedHashMap<String, Long> entries;
+
+	public ThumbnailCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		if (entries != null) {
+			trim();
+		}
+	}
+
+	private void ensureLoaded() {
+		if (entries != null) {
+			return;
+		}
+		entries = new LinkedHashMap<>(16, 0.75f, true);
+		dir.mkdirs();
+		var files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (var file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				// left over from crashes
+				file.delete();
+				continue;
+			}
+			var length = file.length();
+			entries.put(file.getName(), length);
+			bytes += length;
+		}
+		trim();
+	}
+
+	private void trim() {
+		var it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			var entry = it.next();
+			new File(dir, entry.getKey()).delete();
+			bytes -= entry.getValue();
+			it.remove();
+		}
+	}
+
+	private static int bucket(Point sizeHint) {
+		var size = Math.max(sizeHint.x, sizeHint.y);
+		return size <= MIN_BUCKET ? MIN_BUCKET :
+			Integer.highestOneBit(size - 1) << 1;
+	}
+
+	private static String name(FileVersion version, Point sizeHint) {
+		return Digests.sha1Hex(version.path() + '\0' + version.size() + '\0' +
+			version.mtime() + '\0' + bucket(sizeHint));
+	}
+
+	public AssetFileDescriptor get(FileVersion version, Point sizeHint) {
+		var name = name(version, sizeHint);
+		synchronized (this) {
+			ensureLoaded();
+			if (entries.get(name) == null) {
+				return null;
+			}
+			var file = new File(dir, name);
+			try {
+				var fd = ParcelFileDescriptor.open(file,
+					ParcelFileDescriptor.MODE_READ_ONLY);
+				file.setLastModified(System.currentTimeMillis());
+				return new AssetFileDescriptor(fd, 0, fd.getStatSize());
+			} catch (FileNotFoundException e) {
+				// removed behind our back, e.g. cache dir cleared by system
+				bytes -= entries.remove(name);
+				return null;
+			}
+		}
+	}
+
+	// consumes thumbnail, returns an equivalent one backed by local file,
+	// which is retained for later get() if it fits
+	// on failure to write the cache, the thumbnail is served uncached
+	public AssetFileDescriptor put(FileVersion version, Point sizeHint,
+			AssetFileDescriptor thumbnail) throws IOException {
+		var name = name(version, sizeHint);
+		File tmp;
+		try {
+			dir.mkdirs();
+			tmp = File.createTempFile(name, TEMP_SUFFIX, dir);
+		} catch (IOException e) {
+			Log.w(TAG, "cannot create cache file", e);
+			return thumbnail;
+		}
+		try (var in = thumbnail.createInputStream()) {
+			var written = 0L;
+			var buf = new byte[8192];
+			int len;
+			try (var out = new FileOutputStream(tmp)) {
+				while ((len = in.read(buf)) != -1) {
+					try {
+						out.write(buf, 0, len);
+					} catch (IOException e) {
+						Log.w(TAG, "cannot write cache file", e);
+						return uncached(tmp, written, buf, len, in);
+					}
+					written += len;
+				}
+			}
+			// unlinked file is still readable via fd, if we do not keep it
+			ParcelFileDescriptor fd;
+			try {
+				fd = ParcelFileDescriptor.open(tmp,
+					ParcelFileDescriptor.MODE_READ_ONLY);
+			} catch (IOException e) {
+				Log.w(TAG, "cannot open cache file", e);
+				return uncached(tmp, written, buf, 0, in);
+			}
+			synchronized (this) {
+				ensureLoaded();
+				if (written <= maxBytes / MAX_ENTRY_FRACTION &&
+						tmp.renameTo(new File(dir, name))) {
+					var old = entries.put(name, written);
+					bytes += written - (old != null ? old : 0);
+					trim();
+				}
+			}
+			return new AssetFileDescriptor(fd, 0, written);
+		} finally {
+			thumbnail.close();
+			if (tmp.exists() && !tmp.delete()) {
+				Log.w(TAG, "cannot delete " + tmp);
+			}
+		}
+	}
+
+	// the part already written, what is in buf, and the rest of in
+	private static AssetFileDescriptor uncached(File partial, long written,
+			byte[] buf, int len, InputStream in) throws IOException {
+		var thumbnail = new byte[(int) written];
+		try (var head = new DataInputStream(new FileInputStream(partial))) {
+			head.readFully(thumbnail);
+		}
+		var out = new ByteArrayOutputStream();
+		out.write(thumbnail);
+		do {
+			out.write(buf, 0, len);
+		} while ((len = in.read(buf)) != -1);
+		var bytes = out.toByteArray();
+
+		var pipe = ParcelFileDescriptor.createReliablePipe();
+		CompletableFuture.runAsync(() -> {
+			try {
+				try (var o = new AutoCloseOutputStream(pipe[1])) {
+					o.write(bytes);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "exception on pipe", e);
+			}
+		});
+		return new AssetFileDescriptor(pipe[0], 0, bytes.length);
+	}
+}
@@ -0,0 +1,159 @@
+package link.xdavidwu.saf.thumbnails;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Runs thumbnail requests on their calling threads, at most maxConcurrency at
+ * a time, latest first, as those are likely the tiles currently visible.
+ *
+ * A request for a document already in flight waits for it and shares its
+ * outcome: a failure as is, or a success via the reuse task, e.g. a read of
+ * ThumbnailCache, as an AssetFileDescriptor cannot be handed out twice. It runs
+ * on its own only if there is nothing to reuse.
+ */
+public class ThumbnailScheduler {
+	private static final long POLL_MILLIS = 100;
+
+	public interface ThumbnailTask {
+		AssetFileDescriptor run() throws FileNotFoundException;
+	}
+
+	private static class Job {
+		boolean granted;
+		boolean done;
+		// how it ended, for duplicates waiting for it
+		boolean succeeded;
+		boolean notFound;
+	}
+
+	private int maxConcurrency;
+	private int running;
+	private final Deque<Job> pending = new ArrayDeque<>();
+	private final Map<String, Job> inFlight = new HashMap<>();
+
+	public ThumbnailScheduler(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+		grant();
+	}
+
+	private void grant() {
+		while (running < maxConcurrency && !pending.isEmpty()) {
+			pending.pop().granted = true;
+			running++;
+		}
+		notifyAll();
+	}
+
+	private void await(CancellationSignal signal) {
+		try {
+			wait(POLL_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OperationCanceledException("interrupted");
+		}
+		if (signal != null) {
+			signal.throwIfCanceled();
+		}
+	}
+
+	// the last one finished, null if none in flight
+	private synchronized Job awaitInFlight(String key,
+			CancellationSignal signal) {
+		Job finished = null;
+		while (true) {
+			var existing = inFlight.get(key);
+			if (existing == null) {
+				return finished;
+			}
+			while (!existing.done) {
+				await(signal);
+			}
+			finished = existing;
+		}
+	}
+
+	private synchronized Job enqueue(String key, CancellationSignal signal) {
+		while (true) {
+			var existing = inFlight.get(key);
+			if (existing == null) {
+				break;
+			}
+			while (!existing.done) {
+				await(signal);
+			}
+		}
+
+		var job = new Job();
+		inFlight.put(key, job);
+		pending.push(job);
+		grant();
+		try {
+			while (!job.granted) {
+				await(signal);
+			}
+		} catch (OperationCanceledException e) {
+			if (job.granted) {
+				running--;
+			} else {
+				pending.remove(job);
+			}
+			finish(key, job);
+			throw e;
+		}
+		return job;
+	}
+
+	private void finish(String key, Job job) {
+		job.done = true;
+		inFlight.remove(key, job);
+		grant();
+	}
+
+	// reuse returns null if there is nothing to reuse
+	public AssetFileDescriptor run(String key, CancellationSignal signal,
+			ThumbnailTask task, ThumbnailTask reuse)
+			throws FileNotFoundException {
+		var previous = awaitInFlight(key, signal);
+		if (previous != null) {
+			if (previous.notFound) {
+				throw new FileNotFoundException();
+			}
+			if (previous.succeeded) {
+				var reused = reuse.run();
+				if (reused != null) {
+					return reused;
+				}
+			}
+		}
+
+		var job = enqueue(key, signal);
+		try {
+			if (signal != null) {
+				signal.throwIfCanceled();
+			}
+			var result = task.run();
+			job.succeeded = true;
+			return result;
+		} catch (FileNotFoundException e) {
+			job.notFound = true;
+			throw e;
+		} finally {
+			synchronized (this) {
+				running--;
+				finish(key, job);
+			}
+		}
+	}
+}
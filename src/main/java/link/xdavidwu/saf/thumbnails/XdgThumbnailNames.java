@@ -0,0 +1,134 @@
+package link.xdavidwu.saf.thumbnails;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import link.xdavidwu.saf.Digests;
+
+/*
+ * File names of thumbnails per XDG thumbnail spec, i.e. MD5 of URI in hex.
+ *
+ * Safe to use concurrently: digests and buffers are per thread, and reused so
+ * that a name costs a single allocation for the result.
+ */
+public final class XdgThumbnailNames {
+	private static final String SUFFIX = ".png";
+	// RFC 2396 characters kept in paths, per g_filename_to_uri()
+	private static final String URI_PATH_SAFE = "-_.!~*'()/:@&=+$,";
+
+	private static class Hasher {
+		private final MessageDigest md5;
+		private final byte[] digest = new byte[16];
+		private final char[] name = new char[32 + SUFFIX.length()];
+		private byte[] buf = new byte[256];
+		private int len;
+
+		Hasher() {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			SUFFIX.getChars(0, SUFFIX.length(), name, 32);
+		}
+
+		void append(int b) {
+			if (len == buf.length) {
+				var grown = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, grown, 0, len);
+				buf = grown;
+			}
+			buf[len++] = (byte) b;
+		}
+
+		void appendAscii(String s) {
+			for (var i = 0; i < s.length(); i++) {
+				append(s.charAt(i));
+			}
+		}
+
+		void appendEscaped(int b) {
+			b &= 0xff;
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') ||
+					(b >= '0' && b <= '9') || URI_PATH_SAFE.indexOf(b) != -1) {
+				append(b);
+			} else {
+				append('%');
+				// uppercase, as GLib does
+				append(Character.toUpperCase(Digests.hexDigit(b >>> 4)));
+				append(Character.toUpperCase(Digests.hexDigit(b)));
+			}
+		}
+
+		// UTF-8, lone surrogates become '?' as in String.getBytes()
+		void appendUtf8(String s, boolean escape) {
+			for (var i = 0; i < s.length(); i++) {
+				int cp = s.charAt(i);
+				if (Character.isHighSurrogate((char) cp) && i + 1 < s.length() &&
+						Character.isLowSurrogate(s.charAt(i + 1))) {
+					cp = Character.toCodePoint((char) cp, s.charAt(++i));
+				} else if (Character.isSurrogate((char) cp)) {
+					cp = '?';
+				}
+
+				if (cp < 0x80) {
+					appendByte(cp, escape);
+				} else if (cp < 0x800) {
+					appendByte(0xc0 | (cp >> 6), escape);
+					appendByte(0x80 | (cp & 0x3f), escape);
+				} else if (cp < 0x10000) {
+					appendByte(0xe0 | (cp >> 12), escape);
+					appendByte(0x80 | ((cp >> 6) & 0x3f), escape);
+					appendByte(0x80 | (cp & 0x3f), escape);
+				} else {
+					appendByte(0xf0 | (cp >> 18), escape);
+					appendByte(0x80 | ((cp >> 12) & 0x3f), escape);
+					appendByte(0x80 | ((cp >> 6) & 0x3f), escape);
+					appendByte(0x80 | (cp & 0x3f), escape);
+				}
+			}
+		}
+
+		private void appendByte(int b, boolean escape) {
+			if (escape) {
+				appendEscaped(b);
+			} else {
+				append(b);
+			}
+		}
+
+		String finish() {
+			md5.update(buf, 0, len);
+			len = 0;
+			try {
+				md5.digest(digest, 0, digest.length);
+			} catch (DigestException e) {
+				throw new RuntimeException(e);
+			}
+			Digests.toHex(digest, name, 0);
+			return String.valueOf(name);
+		}
+	}
+
+	private static final ThreadLocal<Hasher> hashers =
+		ThreadLocal.withInitial(Hasher::new);
+
+	private XdgThumbnailNames() {}
+
+	// for shared repositories, .sh_thumbnails next to the file
+	public static String forSharedRepository(String filename) {
+		var h = hashers.get();
+		h.appendAscii("./");
+		h.appendUtf8(filename, false);
+		return h.finish();
+	}
+
+	// for personal repositories, e.g. ~/.cache/thumbnails, by absolute path
+	public static String forPersonalRepository(String absolutePath) {
+		var h = hashers.get();
+		h.appendAscii("file://");
+		h.appendUtf8(absolutePath, true);
+		return h.finish();
+	}
+}